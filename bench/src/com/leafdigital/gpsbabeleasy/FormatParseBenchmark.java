@@ -0,0 +1,72 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures parsing the format list from GPSBabel help text.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FormatParseBenchmark
+{
+	/** Number of formats in help text (GPSBabel 1.4 has about 150) */
+	@Param({"150"})
+	public int formats;
+
+	private String help;
+
+	/**
+	 * Builds help text in the same layout as gpsbabel -h.
+	 */
+	@Setup
+	public void setup()
+	{
+		StringBuilder out = new StringBuilder();
+		out.append("GPSBabel Version 1.4.3\n\nUsage:\n");
+		out.append("    gpsbabel [options] -i INTYPE -f INFILE [filter] -o OUTTYPE -F OUTFILE\n");
+		out.append("    gpsbabel [options] -i INTYPE -o OUTTYPE INFILE [filter] OUTFILE\n\n");
+		out.append("    Converts GPS route and waypoint data from one format type to another.\n\n");
+		out.append("File Types (-i and -o options):\n");
+		for(int i=0; i<formats; i++)
+		{
+			out.append("\tformat" + i + "              Example format number " + i + "\n");
+			out.append("\t  snlen                Max synthesized shortname length\n");
+		}
+		out.append("\nSupported data filters:\n\tsimplify             Simplify routes\n");
+		help = out.toString();
+	}
+
+	/**
+	 * @return Parsed formats
+	 */
+	@Benchmark
+	public TreeSet<FormatChooser.Format> parse()
+	{
+		return FormatChooser.parseFormats(help);
+	}
+}
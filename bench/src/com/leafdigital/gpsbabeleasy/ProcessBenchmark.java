@@ -0,0 +1,76 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the overhead of running a GPSBabel process, using a stub
+ * executable that exits straight away.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ProcessBenchmark
+{
+	private Converter converter;
+
+	/**
+	 * Sets up converter with the stub executable.
+	 */
+	@Setup
+	public void setup()
+	{
+		converter = new Converter(
+			System.getProperty("bench.gpsbabel", "bench/gpsbabel-stub"), null);
+	}
+
+	/**
+	 * @return Result of running GPSBabel -V
+	 * @throws IOException Any error
+	 */
+	@Benchmark
+	public Converter.RunResult runVersion() throws IOException
+	{
+		return converter.runGpsBabel("-V");
+	}
+
+	/**
+	 * @return Result of running GPSBabel -V, streaming output to a handler
+	 * @throws IOException Any error
+	 */
+	@Benchmark
+	public Converter.RunResult runVersionStreamed() throws IOException
+	{
+		Converter.LineHandler ignore = new Converter.LineHandler()
+		{
+			@Override
+			public void line(String line)
+			{
+			}
+		};
+		return converter.runGpsBabel(null, ignore, ignore, "-V");
+	}
+}
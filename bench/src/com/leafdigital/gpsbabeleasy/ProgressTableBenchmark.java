@@ -0,0 +1,92 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the progress table model with many rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ProgressTableBenchmark
+{
+	/** Number of rows */
+	@Param({"10000", "100000"})
+	public int rows;
+
+	private ProgressDisplay.ProgressTableModel full;
+	private Random random;
+
+	/**
+	 * Creates a model with all rows filled in.
+	 */
+	@Setup
+	public void setup()
+	{
+		full = fill(rows);
+		random = new Random(1);
+	}
+
+	/**
+	 * @param count Number of rows
+	 * @return New model with that many rows
+	 */
+	private static ProgressDisplay.ProgressTableModel fill(int count)
+	{
+		ProgressDisplay.ProgressTableModel model =
+			new ProgressDisplay.ProgressTableModel();
+		for(int i=0; i<count; i++)
+		{
+			model.addRow("file" + i + ".gpx");
+		}
+		return model;
+	}
+
+	/**
+	 * Adds all rows to an empty model; divide by the row count for the cost
+	 * of each.
+	 * @return Model
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 5)
+	@Measurement(iterations = 10)
+	public ProgressDisplay.ProgressTableModel addRows()
+	{
+		return fill(rows);
+	}
+
+	/**
+	 * @return Value from a random row, as when painting a scrolled table
+	 */
+	@Benchmark
+	public Object getValueAt()
+	{
+		return full.getValueAt(random.nextInt(rows), 1);
+	}
+}
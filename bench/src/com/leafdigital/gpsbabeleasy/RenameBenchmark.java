@@ -0,0 +1,114 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures moving a file by copying it, as used when moving the original
+ * file to a different volume.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+public class RenameBenchmark
+{
+	/** File size in bytes */
+	@Param({"4096", "1048576", "67108864"})
+	public int size;
+
+	private File folder, source, target;
+	private byte[] data;
+
+	/**
+	 * Creates temporary folder and file data.
+	 * @throws IOException Any error
+	 */
+	@Setup(Level.Trial)
+	public void setupTrial() throws IOException
+	{
+		folder = File.createTempFile("bench", "");
+		folder.delete();
+		if(!folder.mkdir())
+		{
+			throw new IOException("Unable to create " + folder);
+		}
+		source = new File(folder, "source.gpx");
+		target = new File(folder, "target.gpx");
+		data = new byte[size];
+		for(int i=0; i<size; i++)
+		{
+			data[i] = (byte)('a' + i % 26);
+		}
+	}
+
+	/**
+	 * Writes the source file before each rename.
+	 * @throws IOException Any error
+	 */
+	@Setup(Level.Invocation)
+	public void setupInvocation() throws IOException
+	{
+		target.delete();
+		FileOutputStream out = new FileOutputStream(source);
+		try
+		{
+			out.write(data);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Deletes temporary files.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		source.delete();
+		target.delete();
+		folder.delete();
+	}
+
+	/**
+	 * @throws IOException Any error
+	 */
+	@Benchmark
+	public void moveByCopy() throws IOException
+	{
+		FileMover.move(source, target, false);
+	}
+
+	/**
+	 * @throws IOException Any error
+	 */
+	@Benchmark
+	public void moveByCopyVerified() throws IOException
+	{
+		FileMover.move(source, target, true);
+	}
+}
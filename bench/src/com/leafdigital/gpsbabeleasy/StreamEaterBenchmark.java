@@ -0,0 +1,86 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures how fast process output can be captured, either kept whole or
+ * passed to a handler line by line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class StreamEaterBenchmark
+{
+	/** Total size of output in bytes */
+	@Param({"65536", "4194304"})
+	public int size;
+
+	private byte[] data;
+
+	/**
+	 * Builds output text made of typical GPSBabel warning lines.
+	 * @throws IOException Any error
+	 */
+	@Setup
+	public void setup() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+		byte[] line = "gpx: Warning: track point 12345 has no timestamp\n".getBytes("US-ASCII");
+		while(out.size() + line.length <= size)
+		{
+			out.write(line);
+		}
+		data = out.toByteArray();
+	}
+
+	/**
+	 * @return Captured text
+	 * @throws IOException Any error
+	 */
+	@Benchmark
+	public String keepAll() throws IOException
+	{
+		return new Converter.StreamEater(new ByteArrayInputStream(data), null).getOut();
+	}
+
+	/**
+	 * @return Last few lines of captured text
+	 * @throws IOException Any error
+	 */
+	@Benchmark
+	public String streamLines() throws IOException
+	{
+		Converter.LineHandler ignore = new Converter.LineHandler()
+		{
+			@Override
+			public void line(String line)
+			{
+			}
+		};
+		return new Converter.StreamEater(new ByteArrayInputStream(data), ignore).getOut();
+	}
+}
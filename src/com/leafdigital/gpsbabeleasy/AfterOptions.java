@@ -21,8 +21,7 @@ package com.leafdigital.gpsbabeleasy;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.util.prefs.*;
-import java.util.regex.*;
+import java.util.HashSet;
 
 import javax.script.*;
 import javax.swing.*;
@@ -56,6 +55,11 @@ public class AfterOptions extends JPanel
 
 	private boolean ignoreComboEvents = false;
 
+	private final static Object renameSynch = new Object();
+
+	/** Targets of moves that are being copied; synchronize on renameSynch */
+	private final static HashSet<File> renaming = new HashSet<File>();
+
 	/**
 	 * @param easy Owner
 	 */
@@ -257,14 +261,14 @@ public class AfterOptions extends JPanel
 
 	private void addFolderToMru(JComboBox box, File folder)
 	{
-		Preferences prefs = Preferences.userNodeForPackage(this.getClass());
+		Settings settings = Settings.get();
 
 		// Get current MRU and see if it contains this folder
 		int found = MRU_LENGTH - 1; // If not, treat like it was last
 		String[] current = new String[MRU_LENGTH];
 	  for(int i=0; i < MRU_LENGTH; i++)
 	  {
-			current[i] = prefs.get(getPrefKey(box, i), null);
+			current[i] = settings.get(getPrefKey(box, i), null);
 			if(folder.toString().equals(current[i]))
 			{
 				found = i;
@@ -286,23 +290,14 @@ public class AfterOptions extends JPanel
 	  	String key = getPrefKey(box, i);
 	  	if(current[i] == null)
 	  	{
-	  		prefs.remove(key);
+	  		settings.remove(key);
 	  	}
 	  	else
 	  	{
-	  		prefs.put(key, current[i]);
+	  		settings.put(key, current[i]);
 	  	}
 	  }
 
-	  // Save prefs
-	  try
-		{
-			prefs.flush();
-		}
-		catch(BackingStoreException e)
-		{
-			easy.fatalError(e);
-		}
 	}
 
 	/**
@@ -310,27 +305,19 @@ public class AfterOptions extends JPanel
 	 */
 	public void remember()
 	{
-		Preferences prefs = Preferences.userNodeForPackage(this.getClass());
+		Settings settings = Settings.get();
 		synchronized(selectedSynch)
 		{
-			prefs.put("afterAction.in", inSelected.getType());
+			settings.put("afterAction.in", inSelected.getType());
 			if(outSelected instanceof TargetTo)
 			{
-				prefs.put("afterAction.out", "target");
+				settings.put("afterAction.out", "target");
 			}
 			else
 			{
-				prefs.remove("afterAction.out");
+				settings.remove("afterAction.out");
 			}
 		}
-		try
-		{
-			prefs.flush();
-		}
-		catch(BackingStoreException e)
-		{
-			easy.fatalError(e);
-		}
 	}
 
 	/**
@@ -347,26 +334,140 @@ public class AfterOptions extends JPanel
 	/**
 	 * Action on the input files after successful conversion.
 	 */
-	abstract class InFileAction extends InOption
+	static abstract class InFileAction extends InOption
 	{
 		/**
 		 * Called after conversion with a list of all the input files that were
 		 * successfully converted.
 		 * @param usedFile File that converted OK and should be acted on
+		 * @throws IOException If the action fails
 		 */
-		abstract void afterConversion(File usedFile);
+		abstract void afterConversion(File usedFile) throws IOException;
 
 		/**
+		 * Called after conversion with several input files at once. By default
+		 * this calls {@link #afterConversion(File)} for each one; actions that can
+		 * handle many files more quickly together override it.
+		 * @param usedFiles Files that converted OK and should be acted on
+		 * @return Array of the same length containing the error for each file,
+		 *   or null where the action worked
+		 */
+		IOException[] afterConversion(File[] usedFiles)
+		{
+			IOException[] errors = new IOException[usedFiles.length];
+			for(int i=0; i<usedFiles.length; i++)
+			{
+				try
+				{
+					afterConversion(usedFiles[i]);
+				}
+				catch(IOException e)
+				{
+					errors[i] = e;
+				}
+			}
+			return errors;
+		}
+
+		/**
+		 * @return True if this action doesn't do anything, so there is no need
+		 *   to call it
+		 */
+		boolean isNothing()
+		{
+			return false;
+		}
+
+		/**
+		 * @return Folder that files are moved to, or null if the action doesn't
+		 *   use one
+		 */
+		File getFolder()
+		{
+			return null;
+		}
+
+		/**
+		 * Moves several files into a folder, renaming any that collide. All the
+		 * renames are done under one lock; files that can't simply be renamed
+		 * (because they're on a different disk) are then copied one at a time.
+		 * @param usedFiles Original files (null entries are skipped)
+		 * @param folder Destination folder
+		 * @param errors Array of the same length that receives the error for
+		 *   each file that couldn't be moved
+		 * @return New file in destination folder for each file (may have
+		 *   different name), or null if there was an error or it was skipped
+		 */
+		protected File[] renameCollisions(File[] usedFiles, File folder,
+			IOException[] errors)
+		{
+			File[] moved = new File[usedFiles.length], copying = new File[usedFiles.length];
+			// Several conversion workers may be moving files into the same folder
+			synchronized(renameSynch)
+			{
+				for(int i=0; i<usedFiles.length; i++)
+				{
+					if(usedFiles[i] == null)
+					{
+						continue;
+					}
+					File inTarget = getFreeTarget(usedFiles[i], folder);
+					if(usedFiles[i].renameTo(inTarget))
+					{
+						moved[i] = inTarget;
+					}
+					else
+					{
+						// Keep the name while copying, so other workers don't use it
+						renaming.add(inTarget);
+						copying[i] = inTarget;
+					}
+				}
+			}
+
+			// Rename can fail across filesystems, so try a copy. This is outside
+			// the lock because it can take a while.
+			for(int i=0; i<usedFiles.length; i++)
+			{
+				if(copying[i] == null)
+				{
+					continue;
+				}
+				try
+				{
+					FileMover.move(usedFiles[i], copying[i]);
+					moved[i] = copying[i];
+				}
+				catch(IOException e)
+				{
+					IOException changedMessage = new IOException(
+						"Failed to move file from " + usedFiles[i] + " to " + copying[i]);
+					changedMessage.initCause(e);
+					errors[i] = changedMessage;
+				}
+				finally
+				{
+					synchronized(renameSynch)
+					{
+						renaming.remove(copying[i]);
+					}
+				}
+			}
+			return moved;
+		}
+
+		/**
+		 * Finds a target name that isn't in use. Must be called while
+		 * synchronized on renameSynch.
 		 * @param usedFile Original file
 		 * @param folder Destination folder
 		 * @return New file in destination folder (may have different name)
-		 * @throws IOException If failure when renaming
 		 */
-		protected File renameCollision(File usedFile, File folder) throws IOException
+		private File getFreeTarget(File usedFile, File folder)
 		{
 			// Check for file collision
 			File inTarget = new File(folder, usedFile.getName());
-			if(inTarget.exists())
+			if(inTarget.exists() || renaming.contains(inTarget))
 			{
 				String newName;
 				for(int i=2;; i++)
@@ -381,86 +482,54 @@ public class AfterOptions extends JPanel
 						newName += " (" + i + ")";
 					}
 					inTarget = new File(folder, newName);
-					if(!inTarget.exists())
+					if(!inTarget.exists() && !renaming.contains(inTarget))
 					{
 						break;
 					}
 				}
 			}
-			if(!usedFile.renameTo(inTarget))
-			{
-				// Rename can fail across filesystems, so try a copy
-				try
-				{
-					renameWithCopy(usedFile, inTarget);
-				}
-				catch(IOException e)
-				{
-					IOException changedMessage = new IOException(
-						"Failed to move file from " + usedFile + " to " + inTarget);
-					changedMessage.initCause(e);
-					throw changedMessage;
-				}
-			}
 			return inTarget;
 		}
 	}
 
 	/**
-	 * Renames a file by copying it and deleting the original.
-	 * @param source Source file
-	 * @param target Target file
-	 * @throws IOException Any error
+	 * Gets an input file action without using the user interface, for example
+	 * from the command line.
+	 * @param type Type code: "nothing", "trash", or "move"
+	 * @param folder Folder (required for "move", otherwise ignored)
+	 * @return Action
+	 * @throws IllegalArgumentException If type is not recognised, or folder is
+	 *   missing for "move"
 	 */
-	private static void renameWithCopy(File source, File target) throws IOException
+	static InFileAction getInFileAction(String type, File folder)
+		throws IllegalArgumentException
 	{
-		boolean ok = false;
-		try
+		if(type.equals("nothing"))
 		{
-			// Copy file.
-			FileInputStream input = new FileInputStream(source);
-			FileOutputStream output = new FileOutputStream(target);
-			byte[] buffer = new byte[65536];
-			while(true)
-			{
-				int read = input.read(buffer);
-				if(read == -1)
-				{
-					break;
-				}
-				output.write(buffer, 0, read);
-			}
-			input.close();
-			output.close();
-
-			// Update date.
-			if(!target.setLastModified(source.lastModified()))
-			{
-				throw new IOException("Date set failed");
-			}
-
-			// Delete original file.
-			if(!source.delete())
-			{
-				throw new IOException("Delete failed");
-			}
-			ok = true;
+			return new DoNothing();
 		}
-		finally
+		else if(type.equals("trash"))
 		{
-			// If anything failed, try to delete the target file so this operation is
-			// atomic, as best we can manage.
-			if(!ok)
+			return new Trash();
+		}
+		else if(type.equals("move"))
+		{
+			if(folder == null)
 			{
-				target.delete();
+				throw new IllegalArgumentException("Move requires a folder");
 			}
+			return new MoveTo(folder.getAbsolutePath());
+		}
+		else
+		{
+			throw new IllegalArgumentException("Unknown action: " + type);
 		}
 	}
 
 	/**
 	 * Input action: leave files alone.
 	 */
-	private class DoNothing extends InFileAction
+	private static class DoNothing extends InFileAction
 	{
 		@Override
 		public String toString()
@@ -474,6 +543,12 @@ public class AfterOptions extends JPanel
 			// Do nothing!
 		}
 
+		@Override
+		boolean isNothing()
+		{
+			return true;
+		}
+
 		@Override
 		String getType()
 		{
@@ -482,11 +557,14 @@ public class AfterOptions extends JPanel
 	}
 
 	/**
-	 * Input action: move files to desktop then trash. (Move to desktop is to
-	 * make sure we don't add files to trash on a removable device, which takes
-	 * up limited space on that device and is hard to spot.)
+	 * Input action: move files to trash. On a Mac, files are moved to the
+	 * desktop and then trashed by the Finder. (Move to desktop is to make sure
+	 * we don't add files to trash on a removable device, which takes up limited
+	 * space on that device and is hard to spot.) On Linux and other Unix
+	 * systems, files are moved to the freedesktop.org trash in the home folder.
+	 * Other systems, such as Windows, aren't supported.
 	 */
-	private class Trash extends InFileAction
+	private static class Trash extends InFileAction
 	{
 		@Override
 		public String toString()
@@ -495,27 +573,87 @@ public class AfterOptions extends JPanel
 		}
 
 		@Override
-		void afterConversion(File usedFile)
+		void afterConversion(File usedFile) throws IOException
 		{
+			IOException error = afterConversion(new File[] { usedFile })[0];
+			if(error != null)
+			{
+				throw error;
+			}
+		}
+
+		@Override
+		IOException[] afterConversion(File[] usedFiles)
+		{
+			String os = System.getProperty("os.name");
+			IOException[] errors = new IOException[usedFiles.length];
+			if(!os.startsWith("Mac"))
+			{
+				if(isUnix(os))
+				{
+					return FreedesktopTrash.trash(usedFiles);
+				}
+				for(int i=0; i<errors.length; i++)
+				{
+					errors[i] = new IOException("Moving files to the trash is not " +
+						"supported on " + os);
+				}
+				return errors;
+			}
+
 			// Get desktop (note: pretty sure these names are language-independent,
 			// i.e. even on a French or Chinese installation, /Desktop ought to work).
 			File desktop = new File(System.getProperty("user.home") + "/Desktop");
 
-			// Move file onto desktop
+			// Move files onto desktop
+			File[] moved = renameCollisions(usedFiles, desktop, errors);
+			StringBuilder list = new StringBuilder();
+			for(int i=0; i<moved.length; i++)
+			{
+				if(moved[i] != null)
+				{
+					if(list.length() > 0)
+					{
+						list.append(", ");
+					}
+					list.append("POSIX file " + applescriptQuote(moved[i].getAbsolutePath()));
+				}
+			}
+			if(list.length() == 0)
+			{
+				return errors;
+			}
+
+			// Trash them all with one script
 			try
 			{
-				usedFile = renameCollision(usedFile, desktop);
+				evalApplescript("tell application \"Finder\"\n" +
+					"delete {" + list + "}\n" +
+					"end tell");
 			}
 			catch(IOException e)
 			{
-				easy.fatalError(e);
-				return;
+				for(int i=0; i<errors.length; i++)
+				{
+					if(errors[i] == null)
+					{
+						errors[i] = e;
+					}
+				}
 			}
+			return errors;
+		}
 
-			runApplescript("tell application \"Finder\"\n" +
-				"delete POSIX file %1\n" +
-				"end tell",
-				usedFile.getAbsolutePath());
+		/**
+		 * @param os Operating system name
+		 * @return True if the system is Linux or another Unix that uses the
+		 *   freedesktop.org trash
+		 */
+		private static boolean isUnix(String os)
+		{
+			return os.startsWith("Linux") || os.endsWith("BSD") ||
+				os.startsWith("SunOS") || os.startsWith("Solaris") ||
+				os.startsWith("AIX") || os.startsWith("HP-UX");
 		}
 
 		@Override
@@ -528,7 +666,7 @@ public class AfterOptions extends JPanel
 	/**
 	 * Input action: move files to specified location.
 	 */
-	private class MoveTo extends InFileAction
+	private static class MoveTo extends InFileAction
 	{
 		private String folder;
 
@@ -544,28 +682,39 @@ public class AfterOptions extends JPanel
 		}
 
 		@Override
-		void afterConversion(File usedFile)
+		void afterConversion(File usedFile) throws IOException
 		{
-			// Skip if it's already in that folder
-			if(usedFile.getParentFile().equals(folder))
+			IOException error = afterConversion(new File[] { usedFile })[0];
+			if(error != null)
 			{
-				return;
+				throw error;
 			}
+		}
 
-			// Handle collisions
-			try
-			{
-				usedFile = renameCollision(usedFile, new File(folder));
-			}
-			catch(IOException e)
+		@Override
+		IOException[] afterConversion(File[] usedFiles)
+		{
+			// Skip any that are already in that folder
+			File target = new File(folder).getAbsoluteFile();
+			File[] moving = new File[usedFiles.length];
+			for(int i=0; i<usedFiles.length; i++)
 			{
-				easy.fatalError(e);
-				return;
+				if(!usedFiles[i].getAbsoluteFile().getParentFile().equals(target))
+				{
+					moving[i] = usedFiles[i];
+				}
 			}
 
-			// Move file
-			runApplescript("tell application \"Finder\" to move POSIX file %1 to POSIX file %2",
-				usedFile.getAbsolutePath(), new File(folder).getAbsolutePath());
+			// Move files together, handling collisions
+			IOException[] errors = new IOException[usedFiles.length];
+			renameCollisions(moving, target, errors);
+			return errors;
+		}
+
+		@Override
+		File getFolder()
+		{
+			return new File(folder);
 		}
 
 		@Override
@@ -585,41 +734,34 @@ public class AfterOptions extends JPanel
 		return "\"" + input.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
 	}
 
-	private final static Pattern REGEX_PERCENT = Pattern.compile("%([0-9]{1,2})");
+	private static ScriptEngine applescriptEngine;
 
 	/**
-	 * Runs some AppleScript.
-	 * @param script Script to run
-	 * @param params String parameters to be inserted in %1, %2, etc within script
+	 * Runs some AppleScript, using the same script engine each time.
+	 * @param script Script to run (with any parameters already inserted)
+	 * @throws IOException If the script fails or AppleScript isn't available
 	 */
-	private void runApplescript(String script, String... params)
+	private static synchronized void evalApplescript(String script)
+		throws IOException
 	{
 		try
 		{
-			// Replace all the % placeholders in the script
-			StringBuffer out = new StringBuffer();
-			Matcher m = REGEX_PERCENT.matcher(script);
-			while(m.find())
+			if(applescriptEngine == null)
 			{
-				int num = Integer.parseInt(m.group(1));
-				if(num < 1 || num > params.length)
+				ScriptEngineManager manager = new ScriptEngineManager();
+				applescriptEngine = manager.getEngineByName("AppleScript");
+				if(applescriptEngine == null)
 				{
-					throw new ScriptException("Undefined %" + num + " parameter in script");
+					throw new IOException("AppleScript is not available");
 				}
-				String replacement = applescriptQuote(params[num-1]);
-				m.appendReplacement(out, replacement);
 			}
-			m.appendTail(out);
-			script = out.toString();
-
-			// Run script
-			ScriptEngineManager manager = new ScriptEngineManager();
-			ScriptEngine engine = manager.getEngineByName("AppleScript");
-			engine.eval(script);
+			applescriptEngine.eval(script);
 		}
 		catch(ScriptException e)
 		{
-			easy.fatalError(e);
+			IOException changedMessage = new IOException("AppleScript failed");
+			changedMessage.initCause(e);
+			throw changedMessage;
 		}
 	}
 
@@ -696,7 +838,7 @@ public class AfterOptions extends JPanel
 		try
 		{
 			ignoreComboEvents = true;
-			Preferences prefs = Preferences.userNodeForPackage(this.getClass());
+			Settings settings = Settings.get();
 
 			// Do input options first
 			ComboBoxSeparatorModel inModel = (ComboBoxSeparatorModel)inOption.getModel();
@@ -712,7 +854,7 @@ public class AfterOptions extends JPanel
 			boolean gotFolder = false;
 		  for(int i=0; i < MRU_LENGTH; i++)
 		  {
-				String recent = prefs.get(getPrefKey(inOption, i), null);
+				String recent = settings.get(getPrefKey(inOption, i), null);
 		  	if(recent != null)
 		  	{
 		  		if(!gotFolder)
@@ -744,7 +886,7 @@ public class AfterOptions extends JPanel
 			else
 			{
 				// Selection was not specified, so get from options
-				String type = prefs.get("afterAction.in", "nothing");
+				String type = settings.get("afterAction.in", "nothing");
 				if(type.equals("nothing"))
 				{
 					inOption.setSelectedIndex(0);
@@ -777,7 +919,7 @@ public class AfterOptions extends JPanel
 			gotFolder = false;
 		  for(int i=0; i < MRU_LENGTH; i++)
 		  {
-				String recent = prefs.get(getPrefKey(outOption, i), null);
+				String recent = settings.get(getPrefKey(outOption, i), null);
 		  	if(recent != null)
 		  	{
 		  		if(!gotFolder)
@@ -809,7 +951,7 @@ public class AfterOptions extends JPanel
 			else
 			{
 				// Selection was not specified, so get from options
-				String type = prefs.get("afterAction.out", null);
+				String type = settings.get("afterAction.out", null);
 				if(type == null)
 				{
 					outOption.setSelectedIndex(0);
@@ -0,0 +1,809 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
+
+import com.leafdigital.gpsbabeleasy.AfterOptions.InFileAction;
+import com.leafdigital.gpsbabeleasy.FormatChooser.Format;
+
+/**
+ * Runs conversions from the command line without opening a window. Results
+ * are printed to standard output as tab-separated lines, one per file,
+ * followed by a summary line; GPSBabel's own output goes to standard error.
+ * <p>
+ * This class doesn't use the Apple Java extensions, so it can run on any
+ * platform where there is a GPSBabel executable.
+ */
+public class CommandLine
+{
+	private final static String USAGE =
+		"Usage: java -cp GPSBabelEasy.jar com.leafdigital.gpsbabeleasy.CommandLine\n" +
+		"  -i <format> -o <format> [options] <file or glob>...\n" +
+		"  -c [-i <format>] <file or glob>...\n" +
+		"  -w -i <format> -o <format> [options] <folder>...\n" +
+		"\n" +
+		"  -i <format>   Input format code (as in gpsbabel -h)\n" +
+		"  -o <format>   Output format code, or several separated by commas (each\n" +
+		"                input is read once and written to all of them)\n" +
+		"  -x <filters>  GPSBabel filters to run on the data, separated by semicolons\n" +
+		"                (e.g. 'position,distance=1m;simplify,error=0.001k'), or the\n" +
+		"                name of a filter preset\n" +
+		"  -d <folder>   Output folder (default: same folder as each input file)\n" +
+		"  -a <action>   Action on input files after conversion: nothing, trash, move\n" +
+		"  -m <folder>   Folder for the 'move' action\n" +
+		"  -j <count>    Number of conversions to run at once\n" +
+		"  -b <count>    Maximum files per GPSBabel process (1 turns batching off)\n" +
+		"  -t <seconds>  Time allowed per GPSBabel process, before extra time for\n" +
+		"                larger files (0 for no limit)\n" +
+		"  -g <path>     Path to gpsbabel executable (default ./gpsbabel)\n" +
+		"  -n            Don't use the conversion cache\n" +
+		"  -w            Watch folders and convert files as they appear, until\n" +
+		"                stopped; results are printed as each file finishes\n" +
+		"  -e <list>     Extensions of files to convert when watching, e.g. gpx,log\n" +
+		"  -c            Check files without converting: print the format guessed\n" +
+		"                from each file's content and its number of points\n" +
+		"  -p            Always run GPSBabel, even for conversions that can be done\n" +
+		"                in-process\n" +
+		"  -M <group>    Merge input files into one output per group: all, hour or\n" +
+		"                day (by file modification time)\n" +
+		"  -L <count>    Maximum input files in each merged output\n" +
+		"  -S <MB>       Maximum total size of input files in each merged output\n" +
+		"\n" +
+		"Globs may use * and ? within a name, and ** to match any number of folders.\n" +
+		"Quote them to stop the shell expanding them.\n";
+
+	private final static int EXIT_OK = 0, EXIT_FAILED = 1, EXIT_USAGE = 2;
+
+	/**
+	 * Thrown for errors in the command-line parameters.
+	 */
+	private static class UsageException extends Exception
+	{
+		private final static long serialVersionUID = 1L;
+
+		private UsageException(String message)
+		{
+			super(message);
+		}
+	}
+
+	private String inCode, outCode, action = "nothing", gpsBabelPath = "./gpsbabel",
+		extensions, mergeGroup, filterText;
+	private File outFolder, moveFolder;
+	private int workers, batchSize, timeout = -1, mergeMaxFiles, mergeMaxMB;
+	private boolean noCache, processOnly, checkOnly, watch;
+	private List<String> globs = new LinkedList<String>();
+
+	/**
+	 * @param args Command-line parameters
+	 */
+	public static void main(String[] args)
+	{
+		System.exit(new CommandLine().run(args));
+	}
+
+	/**
+	 * Parses parameters and runs conversions.
+	 * @param args Command-line parameters
+	 * @return Process exit code
+	 */
+	private int run(String[] args)
+	{
+		try
+		{
+			parseArgs(args);
+		}
+		catch(UsageException e)
+		{
+			System.err.println(e.getMessage());
+			System.err.println();
+			System.err.print(USAGE);
+			return EXIT_USAGE;
+		}
+		if(checkOnly)
+		{
+			return check();
+		}
+
+		Converter converter = new Converter(gpsBabelPath, new Converter.Owner()
+		{
+			@Override
+			public void lockClose()
+			{
+			}
+
+			@Override
+			public void unlockClose()
+			{
+			}
+		});
+		converter.getStats().register();
+		Converter.LineHandler toStderr = new Converter.PrintLineHandler(System.err);
+		converter.setProcessHandlers(toStderr, toStderr);
+		if(workers != 0)
+		{
+			converter.setWorkerCount(workers);
+		}
+		if(batchSize != 0)
+		{
+			converter.setBatchSize(batchSize);
+		}
+		if(processOnly)
+		{
+			converter.setNativeEnabled(false);
+		}
+		if(timeout != -1)
+		{
+			converter.setTimeout(timeout, converter.getTimeoutSecondsPerMB());
+		}
+
+		// Get formats from GPSBabel
+		Format in;
+		Format[] outs;
+		String version;
+		try
+		{
+			GpsBabelInfo info = GpsBabelInfo.get(converter);
+			version = info.getVersion();
+			if(!noCache)
+			{
+				converter.setCache(ConversionCache.create(version));
+			}
+			in = FormatChooser.findFormat(info.getFormats(), inCode);
+			List<String> outCodes = new ArrayList<String>(
+				new LinkedHashSet<String>(Arrays.asList(outCode.split(","))));
+			outs = new Format[outCodes.size()];
+			for(int i=0; i<outs.length; i++)
+			{
+				outs[i] = FormatChooser.findFormat(info.getFormats(), outCodes.get(i).trim());
+				if(outs[i] == null)
+				{
+					outCode = outCodes.get(i);
+				}
+			}
+		}
+		catch(Exception e)
+		{
+			System.err.println("Unable to run GPSBabel: " + e.getMessage());
+			return EXIT_FAILED;
+		}
+		try
+		{
+			if(in == null)
+			{
+				throw new UsageException("Unknown input format: " + inCode);
+			}
+			for(Format out : outs)
+			{
+				if(out == null)
+				{
+					throw new UsageException("Unknown output format: " + outCode);
+				}
+			}
+			if(watch && outs.length > 1)
+			{
+				throw new UsageException("Only one output format can be used with -w");
+			}
+			if(watch && mergeGroup != null)
+			{
+				throw new UsageException("Files can't be merged with -w");
+			}
+		}
+		catch(UsageException e)
+		{
+			System.err.println(e.getMessage());
+			return EXIT_USAGE;
+		}
+
+		InFileAction inAction;
+		FilterChain filters;
+		MergeGroups mergeGroups = null;
+		try
+		{
+			inAction = AfterOptions.getInFileAction(action, moveFolder);
+			filters = filterText == null ? FilterChain.NONE : FilterChain.resolve(filterText);
+			if(mergeGroup != null)
+			{
+				mergeGroups = MergeGroups.fromPreferences(
+					mergeGroup, mergeMaxFiles, mergeMaxMB);
+			}
+		}
+		catch(IllegalArgumentException e)
+		{
+			System.err.println(e.getMessage());
+			return EXIT_USAGE;
+		}
+
+		if(watch)
+		{
+			return watch(converter, in, outs[0], filters, inAction);
+		}
+
+		File[] files = findFiles();
+		long totalBytes = 0;
+		for(File file : files)
+		{
+			totalBytes += file.length();
+		}
+		List<MergeGroups.Group> groups = mergeGroups == null ? null :
+			mergeGroups.split(files);
+
+		// One result for each output of each file or merged group (merged results
+		// are listed under the first file of the group)
+		int count = groups == null ? files.length : groups.size();
+		FileResult[] results = new FileResult[count * outs.length];
+		CountDownLatch done = new CountDownLatch(results.length);
+		for(int i=0; i<count; i++)
+		{
+			File file = groups == null ? files[i] : groups.get(i).getFiles()[0];
+			for(int j=0; j<outs.length; j++)
+			{
+				results[i * outs.length + j] = new FileResult(file, done, null);
+			}
+		}
+
+		// Convert and wait for all results
+		long start = System.nanoTime();
+		if(groups == null)
+		{
+			converter.convert(in, outs, filters, inAction, outFolder, files, results);
+		}
+		else
+		{
+			for(int i=0; i<count; i++)
+			{
+				MergeGroups.Group group = groups.get(i);
+				converter.merge(in, outs, filters, inAction, outFolder, group.getFiles(),
+					group.getName(), Arrays.copyOfRange(results, i * outs.length,
+					(i + 1) * outs.length, Converter.Status[].class));
+			}
+		}
+		try
+		{
+			done.await();
+		}
+		catch(InterruptedException e)
+		{
+			System.err.println("Interrupted");
+			return EXIT_FAILED;
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		// Print results
+		PrintStream stdout = System.out;
+		stdout.println("result\tmillis\tfile\tmessage");
+		int ok = 0;
+		for(FileResult result : results)
+		{
+			stdout.println(result);
+			if(result.success)
+			{
+				ok++;
+			}
+		}
+		stdout.println(String.format(Locale.US,
+			"summary\tfiles=%d\tok=%d\tfailed=%d\tseconds=%.3f\tfilesPerSecond=%.2f" +
+			"\tbytesPerSecond=%.0f\tworkers=%d\tbatchSize=%d\tgpsbabel=%s",
+			results.length, ok, results.length - ok, seconds,
+			seconds > 0 ? results.length / seconds : 0.0,
+			seconds > 0 ? totalBytes / seconds : 0.0,
+			converter.getWorkerCount(), converter.getBatchSize(), version));
+
+		return ok == results.length ? EXIT_OK : EXIT_FAILED;
+	}
+
+	/**
+	 * Watches folders, converting files as they appear. This only returns if
+	 * there's an error.
+	 * @param converter Converter
+	 * @param in Input format
+	 * @param out Output format
+	 * @param filters Filters to run on the data
+	 * @param inAction Action on input files after successful conversion
+	 * @return Process exit code
+	 */
+	private int watch(final Converter converter, Format in, Format out,
+		FilterChain filters, InFileAction inAction)
+	{
+		List<File> folders = new ArrayList<File>();
+		for(String folder : globs)
+		{
+			folders.add(new File(folder));
+		}
+
+		final PrintStream stdout = System.out;
+		HotFolder hotFolder;
+		try
+		{
+			hotFolder = new HotFolder(folders, in, out, filters, inAction, outFolder,
+				extensions == null ? null : HotFolder.parseExtensions(extensions),
+				new HotFolder.Target()
+			{
+				@Override
+				public void convert(File[] files, Format in, Format out,
+					FilterChain filters, InFileAction inAction, File outFolder,
+					Converter.Status[] statuses)
+				{
+					Converter.Status[] results = new Converter.Status[files.length];
+					for(int i=0; i<files.length; i++)
+					{
+						results[i] = new Converter.StatusPair(
+							new FileResult(files[i], null, stdout), statuses[i]);
+					}
+					converter.convert(in, new Format[] { out }, filters, inAction,
+						outFolder, files, results);
+				}
+			});
+		}
+		catch(IllegalArgumentException e)
+		{
+			System.err.println(e.getMessage());
+			return EXIT_USAGE;
+		}
+
+		stdout.println("result\tmillis\tfile\tmessage");
+		hotFolder.start();
+		try
+		{
+			while(true)
+			{
+				Thread.sleep(Long.MAX_VALUE);
+			}
+		}
+		catch(InterruptedException e)
+		{
+			hotFolder.stop();
+			return EXIT_FAILED;
+		}
+	}
+
+	/**
+	 * @return All files matching the globs, without duplicates
+	 */
+	private File[] findFiles()
+	{
+		LinkedHashSet<File> found = new LinkedHashSet<File>();
+		for(String glob : globs)
+		{
+			List<File> matches = expandGlob(glob);
+			if(matches.isEmpty())
+			{
+				System.err.println("No files match: " + glob);
+			}
+			found.addAll(matches);
+		}
+		return found.toArray(new File[found.size()]);
+	}
+
+	/**
+	 * Checks files without converting them. For each file this prints the
+	 * format guessed from its content and the number of points, counted in the
+	 * guessed format or (if given) the input format.
+	 * @return Process exit code
+	 */
+	private int check()
+	{
+		PrintStream stdout = System.out;
+		stdout.println("check\tmillis\tfile\tformat\tpoints\tbytes");
+		boolean ok = true;
+		for(File file : findFiles())
+		{
+			long start = System.nanoTime();
+			try
+			{
+				String format = FileSniffer.sniff(file);
+				String countFormat = inCode != null ? inCode : format;
+				long points = countFormat == null ? -1 :
+					FileSniffer.countPoints(file, countFormat);
+				stdout.println("ok\t" + (System.nanoTime() - start) / 1000000 + "\t" +
+					file + "\t" + (format == null ? "?" : format) + "\t" +
+					(points == -1 ? "?" : points) + "\t" + file.length());
+			}
+			catch(IOException e)
+			{
+				stdout.println("failed\t" + (System.nanoTime() - start) / 1000000 + "\t" +
+					file + "\t" + e.getMessage());
+				ok = false;
+			}
+		}
+		return ok ? EXIT_OK : EXIT_FAILED;
+	}
+
+	/**
+	 * @param args Command-line parameters
+	 * @throws UsageException If parameters are invalid
+	 */
+	private void parseArgs(String[] args) throws UsageException
+	{
+		for(int i=0; i<args.length; i++)
+		{
+			String arg = args[i];
+			if(!arg.startsWith("-") || arg.length() == 1)
+			{
+				globs.add(arg);
+				continue;
+			}
+			if(arg.equals("-n"))
+			{
+				noCache = true;
+				continue;
+			}
+			if(arg.equals("-p"))
+			{
+				processOnly = true;
+				continue;
+			}
+			if(arg.equals("-c"))
+			{
+				checkOnly = true;
+				continue;
+			}
+			if(arg.equals("-w"))
+			{
+				watch = true;
+				continue;
+			}
+			if(i == args.length - 1)
+			{
+				throw new UsageException("Missing value for " + arg);
+			}
+			String value = args[++i];
+			if(arg.equals("-i"))
+			{
+				inCode = value;
+			}
+			else if(arg.equals("-o"))
+			{
+				outCode = value;
+			}
+			else if(arg.equals("-d"))
+			{
+				outFolder = new File(value).getAbsoluteFile();
+				if(!outFolder.isDirectory())
+				{
+					throw new UsageException("Output folder does not exist: " + value);
+				}
+			}
+			else if(arg.equals("-a"))
+			{
+				action = value;
+			}
+			else if(arg.equals("-m"))
+			{
+				moveFolder = new File(value).getAbsoluteFile();
+				if(!moveFolder.isDirectory())
+				{
+					throw new UsageException("Move folder does not exist: " + value);
+				}
+			}
+			else if(arg.equals("-j"))
+			{
+				workers = parsePositive(arg, value);
+			}
+			else if(arg.equals("-b"))
+			{
+				batchSize = parsePositive(arg, value);
+			}
+			else if(arg.equals("-t"))
+			{
+				try
+				{
+					timeout = Integer.parseInt(value);
+				}
+				catch(NumberFormatException e)
+				{
+					timeout = -1;
+				}
+				if(timeout < 0)
+				{
+					throw new UsageException("Value for -t must be a number of seconds");
+				}
+			}
+			else if(arg.equals("-g"))
+			{
+				gpsBabelPath = value;
+			}
+			else if(arg.equals("-e"))
+			{
+				extensions = value;
+			}
+			else if(arg.equals("-x"))
+			{
+				filterText = value;
+			}
+			else if(arg.equals("-M"))
+			{
+				mergeGroup = value;
+			}
+			else if(arg.equals("-L"))
+			{
+				mergeMaxFiles = parsePositive(arg, value);
+			}
+			else if(arg.equals("-S"))
+			{
+				mergeMaxMB = parsePositive(arg, value);
+			}
+			else
+			{
+				throw new UsageException("Unknown option: " + arg);
+			}
+		}
+
+		if(!checkOnly && (inCode == null || outCode == null))
+		{
+			throw new UsageException("Input and output formats are required");
+		}
+		if(globs.isEmpty())
+		{
+			throw new UsageException("No input files specified");
+		}
+	}
+
+	/**
+	 * @param arg Option name
+	 * @param value Option value
+	 * @return Value as a number
+	 * @throws UsageException If it isn't a positive integer
+	 */
+	private static int parsePositive(String arg, String value) throws UsageException
+	{
+		try
+		{
+			int result = Integer.parseInt(value);
+			if(result > 0)
+			{
+				return result;
+			}
+		}
+		catch(NumberFormatException e)
+		{
+		}
+		throw new UsageException("Value for " + arg + " must be a positive number");
+	}
+
+	/**
+	 * Finds files that match a glob. Each part of the path may contain * and ?
+	 * wildcards, and a part that is just ** matches any number of folders.
+	 * @param glob Glob (or plain filename)
+	 * @return Matching files, sorted within each folder
+	 */
+	static List<File> expandGlob(String glob)
+	{
+		List<File> result = new LinkedList<File>();
+		String[] parts = glob.split(Pattern.quote(File.separator), -1);
+
+		// Start from the longest part without wildcards
+		int first = 0;
+		StringBuilder base = new StringBuilder();
+		for(; first < parts.length; first++)
+		{
+			if(isWildcard(parts[first]))
+			{
+				break;
+			}
+			if(first > 0)
+			{
+				base.append(File.separator);
+			}
+			base.append(parts[first]);
+		}
+		if(first == parts.length)
+		{
+			// No wildcards at all
+			File file = new File(glob);
+			if(file.isFile())
+			{
+				result.add(file);
+			}
+			return result;
+		}
+
+		File folder;
+		if(first == 0)
+		{
+			folder = new File(".");
+		}
+		else if(base.length() == 0)
+		{
+			// Glob started with a separator, e.g. /foo/*.gpx
+			folder = new File(File.separator);
+		}
+		else
+		{
+			folder = new File(base.toString());
+		}
+		matchGlob(folder, first == 0 ? null : folder.getPath(), parts, first, result);
+		return result;
+	}
+
+	private static boolean isWildcard(String part)
+	{
+		return part.indexOf('*') != -1 || part.indexOf('?') != -1;
+	}
+
+	/**
+	 * Recursive part of glob matching.
+	 * @param folder Current folder
+	 * @param path Path to show for current folder, or null if relative to the
+	 *   current directory
+	 * @param parts Glob split into path parts
+	 * @param index Index of part to match within this folder
+	 * @param result List that receives matching files
+	 */
+	private static void matchGlob(File folder, String path, String[] parts,
+		int index, List<File> result)
+	{
+		String[] names = folder.list();
+		if(names == null)
+		{
+			return;
+		}
+		Arrays.sort(names);
+		String part = parts[index];
+		boolean last = index == parts.length - 1;
+
+		if(part.equals("**"))
+		{
+			// Zero folders...
+			if(last)
+			{
+				return;
+			}
+			matchGlob(folder, path, parts, index + 1, result);
+
+			// ...or one or more
+			for(String name : names)
+			{
+				File child = new File(folder, name);
+				if(child.isDirectory() && !name.startsWith("."))
+				{
+					matchGlob(child, childPath(path, name), parts, index, result);
+				}
+			}
+			return;
+		}
+
+		Pattern pattern = globToPattern(part);
+		for(String name : names)
+		{
+			if(!pattern.matcher(name).matches())
+			{
+				continue;
+			}
+			File child = new File(folder, name);
+			if(last)
+			{
+				if(child.isFile())
+				{
+					result.add(new File(childPath(path, name)));
+				}
+			}
+			else if(child.isDirectory())
+			{
+				matchGlob(child, childPath(path, name), parts, index + 1, result);
+			}
+		}
+	}
+
+	private static String childPath(String path, String name)
+	{
+		return path == null ? name : new File(path, name).getPath();
+	}
+
+	/**
+	 * @param part Part of a glob, e.g. *.gpx
+	 * @return Equivalent regular expression
+	 */
+	private static Pattern globToPattern(String part)
+	{
+		StringBuilder regex = new StringBuilder();
+		for(char c : part.toCharArray())
+		{
+			switch(c)
+			{
+			case '*' :
+				regex.append(".*");
+				break;
+			case '?' :
+				regex.append('.');
+				break;
+			default:
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	/**
+	 * Status for one file, recording how long it took.
+	 */
+	private static class FileResult implements Converter.Status
+	{
+		private File file;
+		private CountDownLatch done;
+		private PrintStream print;
+		private long start, end;
+		private boolean success;
+		private String message;
+
+		/**
+		 * @param file File being converted
+		 * @param done Latch counted down when finished, or null if none
+		 * @param print Stream the result is printed to when finished, or null to
+		 *   print nothing
+		 */
+		private FileResult(File file, CountDownLatch done, PrintStream print)
+		{
+			this.file = file;
+			this.done = done;
+			this.print = print;
+		}
+
+		@Override
+		public synchronized void setProcessing()
+		{
+			start = System.nanoTime();
+		}
+
+		@Override
+		public void setSuccess(String result)
+		{
+			setResult(true, result);
+		}
+
+		@Override
+		public void setFailure(String result)
+		{
+			setResult(false, result);
+		}
+
+		private void setResult(boolean success, String message)
+		{
+			synchronized(this)
+			{
+				end = System.nanoTime();
+				if(start == 0)
+				{
+					start = end;
+				}
+				this.success = success;
+				this.message = message;
+			}
+			if(print != null)
+			{
+				print.println(this);
+			}
+			if(done != null)
+			{
+				done.countDown();
+			}
+		}
+
+		@Override
+		public synchronized String toString()
+		{
+			return (success ? "ok" : "failed") + "\t" + ((end - start) / 1000000) +
+				"\t" + file.getPath() + "\t" + message.replaceAll("[\t\r\n]", " ");
+		}
+	}
+}
@@ -0,0 +1,360 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.security.*;
+import java.util.*;
+import java.util.prefs.Preferences;
+
+/**
+ * On-disk cache of conversion results, so that converting the same file again
+ * doesn't need to run GPSBabel. Results are stored under a hash of the input
+ * file content, the format codes, and the GPSBabel version. When the cache
+ * gets too large, the least recently used results are deleted.
+ */
+public class ConversionCache
+{
+	/**
+	 * Preferences key for maximum cache size in megabytes; 0 turns the cache
+	 * off.
+	 */
+	private final static String PREF_MAX_MB = "cache.maxMB";
+	private final static int DEFAULT_MAX_MB = 256;
+
+	private final static int BUFFER_SIZE = 65536;
+
+	private File folder;
+	private long maxBytes;
+	private String gpsBabelVersion;
+
+	/** Total size of cache files, or -1 if not yet counted */
+	private long size = -1;
+
+	/**
+	 * @param folder Folder for cache files (created if needed)
+	 * @param maxBytes Maximum total size of cache
+	 * @param gpsBabelVersion GPSBabel name and version, which is included in
+	 *   each key so results from a different version aren't used
+	 */
+	public ConversionCache(File folder, long maxBytes, String gpsBabelVersion)
+	{
+		this.folder = folder;
+		this.maxBytes = maxBytes;
+		this.gpsBabelVersion = gpsBabelVersion;
+	}
+
+	/**
+	 * Creates the cache in the standard location, with size set from
+	 * preferences.
+	 * @param gpsBabelVersion GPSBabel name and version
+	 * @return Cache, or null if the cache is turned off
+	 */
+	public static ConversionCache create(String gpsBabelVersion)
+	{
+		int maxMB = Preferences.userNodeForPackage(ConversionCache.class).getInt(
+			PREF_MAX_MB, DEFAULT_MAX_MB);
+		if(maxMB <= 0)
+		{
+			return null;
+		}
+		return new ConversionCache(new File(getCacheFolder(), "conversions"),
+			maxMB * 1024L * 1024L, gpsBabelVersion);
+	}
+
+	/**
+	 * @return Folder used for all this application's caches
+	 */
+	static File getCacheFolder()
+	{
+		String home = System.getProperty("user.home");
+		if(System.getProperty("os.name").startsWith("Mac"))
+		{
+			return new File(home, "Library/Caches/com.leafdigital.gpsbabeleasy");
+		}
+		String xdg = System.getenv("XDG_CACHE_HOME");
+		return new File(xdg != null ? new File(xdg) : new File(home, ".cache"),
+			"gpsbabeleasy");
+	}
+
+	/**
+	 * Calculates the cache key for a conversion. This reads the whole input
+	 * file.
+	 * @param input Input file
+	 * @param parameters Anything else that affects the output, such as the
+	 *   format codes
+	 * @return Key
+	 * @throws IOException If there's an error reading the file
+	 */
+	public String getKey(File input, String... parameters) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new IOException("SHA-1 not available", e);
+		}
+
+		// Parameters go first, each terminated by a zero byte
+		digest.update(gpsBabelVersion.getBytes("UTF-8"));
+		digest.update((byte)0);
+		for(String parameter : parameters)
+		{
+			digest.update(parameter.getBytes("UTF-8"));
+			digest.update((byte)0);
+		}
+
+		FileInputStream in = new FileInputStream(input);
+		try
+		{
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while(true)
+			{
+				int read = in.read(buffer);
+				if(read == -1)
+				{
+					break;
+				}
+				digest.update(buffer, 0, read);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		StringBuilder key = new StringBuilder();
+		for(byte b : digest.digest())
+		{
+			key.append(String.format("%02x", b & 0xff));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Copies a cached result into place, if there is one.
+	 * @param key Key
+	 * @param target Target file (must not exist)
+	 * @return True if the result was cached and has been copied
+	 */
+	public boolean get(String key, File target)
+	{
+		File cached = new File(folder, key);
+		if(!cached.exists())
+		{
+			return false;
+		}
+		try
+		{
+			copy(cached, target);
+			// Mark as recently used
+			cached.setLastModified(System.currentTimeMillis());
+			return true;
+		}
+		catch(IOException e)
+		{
+			// Probably evicted while copying; treat as a miss
+			target.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Checks whether an existing file is identical to the cached result for a
+	 * key, so the conversion has already been done.
+	 * @param key Key
+	 * @param existing Existing file
+	 * @return True if there is a cached result and the file matches it
+	 */
+	public boolean matches(String key, File existing)
+	{
+		File cached = new File(folder, key);
+		if(!cached.exists() || cached.length() != existing.length())
+		{
+			return false;
+		}
+		try
+		{
+			return getKey(cached).equals(getKey(existing));
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Stores a conversion result in the cache. Errors are ignored, because
+	 * the cache only affects speed.
+	 * @param key Key
+	 * @param output Output file from conversion
+	 */
+	public void put(String key, File output)
+	{
+		File cached = new File(folder, key);
+		File temp = null;
+		try
+		{
+			if(!folder.isDirectory() && !folder.mkdirs())
+			{
+				throw new IOException("Unable to create cache folder " + folder);
+			}
+
+			// Copy to a temporary name first so other threads never see part of it
+			temp = File.createTempFile("store", ".tmp", folder);
+			copy(output, temp);
+			synchronized(this)
+			{
+				countSize();
+				if(cached.exists())
+				{
+					// Another worker got there first
+					temp.delete();
+					return;
+				}
+				if(!temp.renameTo(cached))
+				{
+					throw new IOException("Unable to rename cache file");
+				}
+				size += cached.length();
+				evict();
+			}
+		}
+		catch(IOException e)
+		{
+			System.err.println("Unable to store conversion in cache: " + e.getMessage());
+			if(temp != null)
+			{
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Works out the current size, if it hasn't been worked out already. Must
+	 * be called while synchronized.
+	 */
+	private void countSize()
+	{
+		if(size != -1)
+		{
+			return;
+		}
+		size = 0;
+		File[] files = folder.listFiles();
+		if(files != null)
+		{
+			for(File file : files)
+			{
+				size += file.length();
+			}
+		}
+	}
+
+	/**
+	 * Deletes least recently used files until the cache is within its size
+	 * limit. Must be called while synchronized.
+	 */
+	private void evict()
+	{
+		if(size <= maxBytes)
+		{
+			return;
+		}
+		File[] files = folder.listFiles();
+		if(files == null)
+		{
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>()
+		{
+			@Override
+			public int compare(File a, File b)
+			{
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+			}
+		});
+
+		// Recount, in case another process has changed the folder
+		size = 0;
+		for(File file : files)
+		{
+			size += file.length();
+		}
+		for(File file : files)
+		{
+			if(size <= maxBytes)
+			{
+				break;
+			}
+			if(file.getName().endsWith(".tmp"))
+			{
+				// Still being stored by another thread
+				continue;
+			}
+			long length = file.length();
+			if(file.delete())
+			{
+				size -= length;
+			}
+		}
+	}
+
+	/**
+	 * Copies a file.
+	 * @param source Source file
+	 * @param target Target file
+	 * @throws IOException Any error
+	 */
+	private static void copy(File source, File target) throws IOException
+	{
+		FileInputStream in = new FileInputStream(source);
+		try
+		{
+			FileOutputStream out = new FileOutputStream(target);
+			try
+			{
+				FileChannel inChannel = in.getChannel(), outChannel = out.getChannel();
+				long length = inChannel.size();
+				for(long done = 0; done < length;)
+				{
+					long transferred = inChannel.transferTo(done, length - done, outChannel);
+					if(transferred <= 0)
+					{
+						throw new IOException("File changed while copying");
+					}
+					done += transferred;
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,533 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+import java.util.*;
+
+import com.leafdigital.gpsbabeleasy.AfterOptions.InFileAction;
+import com.leafdigital.gpsbabeleasy.FormatChooser.Format;
+
+/**
+ * Append-only record of conversions that have been queued, started and
+ * finished, so that if the application is quit (or crashes) part-way through
+ * a large import, the rest of it can be done next time. Each change is
+ * written as a line at the end of the file; the file is rewritten with only
+ * the unfinished conversions when it is opened, and whenever enough
+ * conversions have finished since it was last rewritten.
+ */
+public class ConversionJournal
+{
+	private final static String JOURNAL_FILE = "journal.txt";
+
+	/** Number of finished conversions before the file is rewritten */
+	private final static int COMPACT_AFTER = 1000;
+
+	private File file;
+	private Writer writer;
+	private long nextId = 1;
+	private int finishedSinceCompact;
+
+	/** Unfinished conversions, in the order they were queued */
+	private LinkedHashMap<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+
+	/**
+	 * A conversion recorded in the journal.
+	 */
+	public static class Entry
+	{
+		private long id;
+		private File file, outFolder, moveFolder;
+		private String inCode, outCode, actionType;
+		private FilterChain filters = FilterChain.NONE;
+		private boolean started;
+
+		/**
+		 * @return Input file
+		 */
+		public File getFile()
+		{
+			return file;
+		}
+
+		/**
+		 * @return Input format code
+		 */
+		public String getInCode()
+		{
+			return inCode;
+		}
+
+		/**
+		 * @return Output format code
+		 */
+		public String getOutCode()
+		{
+			return outCode;
+		}
+
+		/**
+		 * @return Filters run on the data
+		 */
+		public FilterChain getFilters()
+		{
+			return filters;
+		}
+
+		/**
+		 * @return Type code of the action on the input file
+		 */
+		public String getActionType()
+		{
+			return actionType;
+		}
+
+		/**
+		 * @return Folder for the move action, or null if none
+		 */
+		public File getMoveFolder()
+		{
+			return moveFolder;
+		}
+
+		/**
+		 * @return Target folder, or null for same folder as input
+		 */
+		public File getOutFolder()
+		{
+			return outFolder;
+		}
+
+		/**
+		 * @return String that is the same for entries with the same settings,
+		 *   apart from the output format (so that the outputs of one input can be
+		 *   resumed together)
+		 */
+		public String getSettings()
+		{
+			return inCode + "\t" + filters + "\t" + actionType + "\t" + moveFolder +
+				"\t" + outFolder;
+		}
+
+		/**
+		 * @return Line recording that this conversion was queued
+		 */
+		private String getAddLine()
+		{
+			return "add\t" + id + "\t" + escape(inCode) + "\t" + escape(outCode) +
+				"\t" + escape(actionType) + "\t" + escape(moveFolder) + "\t" +
+				escape(outFolder) + "\t" + escape(file) + "\t" +
+				escape(filters.toString()) + "\n";
+		}
+	}
+
+	/**
+	 * Status that records the progress of a conversion in the journal, as well
+	 * as passing it on.
+	 */
+	private class JournalStatus implements Converter.Status
+	{
+		private long id;
+		private Converter.Status status;
+
+		private JournalStatus(long id, Converter.Status status)
+		{
+			this.id = id;
+			this.status = status;
+		}
+
+		@Override
+		public void setProcessing()
+		{
+			status.setProcessing();
+			started(id);
+		}
+
+		@Override
+		public void setSuccess(String result)
+		{
+			status.setSuccess(result);
+			finished(id);
+		}
+
+		@Override
+		public void setFailure(String result)
+		{
+			status.setFailure(result);
+			finished(id);
+		}
+	}
+
+	/**
+	 * Opens the journal in the standard location, reading any unfinished
+	 * conversions from it.
+	 * @return Journal
+	 * @throws IOException If the journal can't be written
+	 */
+	public static ConversionJournal open() throws IOException
+	{
+		return new ConversionJournal(new File(ConversionCache.getCacheFolder(),
+			JOURNAL_FILE));
+	}
+
+	/**
+	 * Opens a journal, reading any unfinished conversions from it.
+	 * @param file Journal file (created if needed)
+	 * @throws IOException If the journal can't be written
+	 */
+	public ConversionJournal(File file) throws IOException
+	{
+		this.file = file;
+		if(file.exists())
+		{
+			read();
+		}
+		compact();
+	}
+
+	/**
+	 * Reads the journal file. Damaged lines are ignored, as is the last line if
+	 * the application stopped while writing it.
+	 * @throws IOException If the file can't be read
+	 */
+	private void read() throws IOException
+	{
+		byte[] data;
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try
+		{
+			data = new byte[(int)in.length()];
+			in.readFully(data);
+		}
+		finally
+		{
+			in.close();
+		}
+
+		// Only read up to the last line break
+		int end = data.length;
+		while(end > 0 && data[end - 1] != '\n')
+		{
+			end--;
+		}
+		for(String line : new String(data, 0, end, "UTF-8").split("\n"))
+		{
+			String[] parts = line.split("\t", -1);
+			try
+			{
+				long id = Long.parseLong(parts[1]);
+				nextId = Math.max(nextId, id + 1);
+				// Filters were added later, so may be missing
+				if(parts[0].equals("add") && (parts.length == 8 || parts.length == 9))
+				{
+					Entry entry = new Entry();
+					entry.id = id;
+					entry.inCode = unescape(parts[2]);
+					entry.outCode = unescape(parts[3]);
+					entry.actionType = unescape(parts[4]);
+					entry.moveFolder = unescapeFile(parts[5]);
+					entry.outFolder = unescapeFile(parts[6]);
+					entry.file = unescapeFile(parts[7]);
+					if(parts.length == 9)
+					{
+						entry.filters = FilterChain.parse(unescape(parts[8]));
+					}
+					if(entry.file != null)
+					{
+						pending.put(id, entry);
+					}
+				}
+				else if(parts[0].equals("start") && parts.length == 2)
+				{
+					Entry entry = pending.get(id);
+					if(entry != null)
+					{
+						entry.started = true;
+					}
+				}
+				else if(parts[0].equals("done") && parts.length == 2)
+				{
+					pending.remove(id);
+				}
+			}
+			catch(RuntimeException e)
+			{
+				// Ignore damaged line
+			}
+		}
+	}
+
+	/**
+	 * @return Conversions that were in the journal when it was opened, or have
+	 *   been added since, and haven't finished
+	 */
+	public synchronized List<Entry> getPending()
+	{
+		return new ArrayList<Entry>(pending.values());
+	}
+
+	/**
+	 * Records conversions that are about to be queued.
+	 * @param files Input files
+	 * @param in Input format
+	 * @param outs Output formats
+	 * @param filters Filters to run on the data
+	 * @param inAction Action on input files after successful conversion
+	 * @param outFolder Target folder, or null for same folder as input
+	 * @param statuses Status for each output of each file, in the order used
+	 *   by {@link Converter#convert(Format, Format[], FilterChain, InFileAction, File, File[], Converter.Status[])}
+	 * @return Status for each output of each file to pass to the converter
+	 *   instead, so that its progress is recorded
+	 */
+	public synchronized Converter.Status[] add(File[] files, Format in,
+		Format[] outs, FilterChain filters, InFileAction inAction, File outFolder,
+		Converter.Status[] statuses)
+	{
+		Converter.Status[] result = new Converter.Status[statuses.length];
+		StringBuilder lines = new StringBuilder();
+		for(int i=0; i<statuses.length; i++)
+		{
+			Entry entry = new Entry();
+			entry.id = nextId++;
+			entry.file = files[i / outs.length].getAbsoluteFile();
+			entry.inCode = in.getCode();
+			entry.outCode = outs[i % outs.length].getCode();
+			entry.filters = filters;
+			entry.actionType = inAction.getType();
+			entry.moveFolder = inAction.getFolder();
+			entry.outFolder = outFolder;
+			pending.put(entry.id, entry);
+			lines.append(entry.getAddLine());
+			result[i] = new JournalStatus(entry.id, statuses[i]);
+		}
+		write(lines.toString());
+		return result;
+	}
+
+	/**
+	 * Records that conversions from the journal don't need doing again, for
+	 * example because they have been queued again with new entries.
+	 * @param entries Entries
+	 */
+	public synchronized void remove(Collection<Entry> entries)
+	{
+		StringBuilder lines = new StringBuilder();
+		for(Entry entry : entries)
+		{
+			if(pending.remove(entry.id) != null)
+			{
+				lines.append("done\t" + entry.id + "\n");
+				finishedSinceCompact++;
+			}
+		}
+		write(lines.toString());
+	}
+
+	/**
+	 * @param id ID of conversion that has started
+	 */
+	private synchronized void started(long id)
+	{
+		Entry entry = pending.get(id);
+		if(entry != null)
+		{
+			entry.started = true;
+			write("start\t" + id + "\n");
+		}
+	}
+
+	/**
+	 * @param id ID of conversion that has finished (successfully or not)
+	 */
+	private synchronized void finished(long id)
+	{
+		if(pending.remove(id) == null)
+		{
+			return;
+		}
+		write("done\t" + id + "\n");
+		finishedSinceCompact++;
+		if(finishedSinceCompact >= COMPACT_AFTER && finishedSinceCompact > pending.size())
+		{
+			try
+			{
+				compact();
+			}
+			catch(IOException e)
+			{
+				System.err.println("Unable to rewrite conversion journal: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Appends lines to the journal. The writer is flushed, so the lines are
+	 * kept even if the application stops suddenly.
+	 * @param lines Lines to write
+	 */
+	private void write(String lines)
+	{
+		if(writer == null || lines.length() == 0)
+		{
+			return;
+		}
+		try
+		{
+			writer.write(lines);
+			writer.flush();
+		}
+		catch(IOException e)
+		{
+			// Carry on without the journal; conversions are unaffected
+			System.err.println("Unable to write conversion journal: " + e.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Rewrites the journal file with only unfinished conversions, and opens it
+	 * for adding more.
+	 * @throws IOException If the file can't be written
+	 */
+	private void compact() throws IOException
+	{
+		close();
+		File folder = file.getParentFile();
+		if(!folder.isDirectory() && !folder.mkdirs())
+		{
+			throw new IOException("Unable to create folder " + folder);
+		}
+
+		// Write to temp file then rename, so the journal is never incomplete
+		File temp = File.createTempFile("journal", ".tmp", folder);
+		try
+		{
+			FileOutputStream stream = new FileOutputStream(temp);
+			Writer tempWriter = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+			try
+			{
+				for(Entry entry : pending.values())
+				{
+					tempWriter.write(entry.getAddLine());
+					if(entry.started)
+					{
+						tempWriter.write("start\t" + entry.id + "\n");
+					}
+				}
+				tempWriter.flush();
+				stream.getFD().sync();
+			}
+			finally
+			{
+				tempWriter.close();
+			}
+			if(!temp.renameTo(file))
+			{
+				// Rename over an existing file fails on some platforms
+				file.delete();
+				if(!temp.renameTo(file))
+				{
+					throw new IOException("Unable to rename " + temp);
+				}
+			}
+		}
+		finally
+		{
+			temp.delete();
+		}
+
+		writer = new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(file, true), "UTF-8"));
+		finishedSinceCompact = 0;
+	}
+
+	/**
+	 * Closes the journal file. Further changes are not recorded.
+	 */
+	public synchronized void close()
+	{
+		if(writer != null)
+		{
+			try
+			{
+				writer.close();
+			}
+			catch(IOException e)
+			{
+				// Nothing more can be done
+			}
+			writer = null;
+		}
+	}
+
+	/**
+	 * @param value Value, or null
+	 * @return Value with backslashes, tabs and line breaks escaped; empty
+	 *   string for null
+	 */
+	private static String escape(Object value)
+	{
+		if(value == null)
+		{
+			return "";
+		}
+		return value.toString().replace("\\", "\\\\").replace("\t", "\\t")
+			.replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	/**
+	 * @param value Escaped value
+	 * @return Original value
+	 */
+	private static String unescape(String value)
+	{
+		StringBuilder out = new StringBuilder();
+		for(int i=0; i<value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if(c == '\\' && i + 1 < value.length())
+			{
+				c = value.charAt(++i);
+				switch(c)
+				{
+				case 't' :
+					c = '\t';
+					break;
+				case 'n' :
+					c = '\n';
+					break;
+				case 'r' :
+					c = '\r';
+					break;
+				}
+			}
+			out.append(c);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @param value Escaped path, or empty string
+	 * @return File, or null if empty
+	 */
+	private static File unescapeFile(String value)
+	{
+		return value.length() == 0 ? null : new File(unescape(value));
+	}
+}
@@ -0,0 +1,270 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.*;
+
+/**
+ * Conversion statistics, published over JMX so that they can be watched with
+ * standard tools such as jconsole.
+ */
+public class ConversionStats implements ConversionStatsMBean
+{
+	/**
+	 * JMX name for the statistics.
+	 */
+	public final static String OBJECT_NAME = "com.leafdigital.gpsbabeleasy:type=ConversionStats";
+
+	/** Histogram bucket limits: 1ms, 2ms, 4ms ... about 65 seconds, then more */
+	private final static int BUCKETS = 18;
+
+	private Converter converter;
+
+	private AtomicLong completed = new AtomicLong(), failed = new AtomicLong(),
+		bytesIn = new AtomicLong(), bytesOut = new AtomicLong();
+
+	private Histogram spawn = new Histogram(), run = new Histogram(),
+		afterAction = new Histogram();
+
+	/**
+	 * Histogram of times in buckets that double in size.
+	 */
+	private static class Histogram
+	{
+		private long[] counts = new long[BUCKETS];
+		private long count, totalNanos, maxNanos;
+
+		private synchronized void add(long nanos)
+		{
+			long millis = nanos / 1000000;
+			int bucket = 0;
+			while(bucket < BUCKETS - 1 && millis > (1L << bucket))
+			{
+				bucket++;
+			}
+			counts[bucket]++;
+			count++;
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+		}
+
+		private synchronized long[] getCounts()
+		{
+			return counts.clone();
+		}
+
+		private synchronized double getMeanMillis()
+		{
+			return count == 0 ? 0.0 : totalNanos / 1e6 / count;
+		}
+
+		private synchronized long getMaxMillis()
+		{
+			return maxNanos / 1000000;
+		}
+
+		private synchronized void reset()
+		{
+			counts = new long[BUCKETS];
+			count = 0;
+			totalNanos = 0;
+			maxNanos = 0;
+		}
+	}
+
+	/**
+	 * @param converter Converter (used for queue details)
+	 */
+	ConversionStats(Converter converter)
+	{
+		this.converter = converter;
+	}
+
+	/**
+	 * Registers with the platform MBean server, replacing statistics for any
+	 * earlier converter. Errors are printed but otherwise ignored, as
+	 * statistics aren't essential.
+	 */
+	void register()
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if(server.isRegistered(name))
+			{
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		}
+		catch(JMException e)
+		{
+			System.err.println("Unable to register conversion statistics: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Records a successful conversion.
+	 * @param in Input size in bytes
+	 * @param out Output size in bytes
+	 */
+	void addCompleted(long in, long out)
+	{
+		completed.incrementAndGet();
+		bytesIn.addAndGet(in);
+		bytesOut.addAndGet(out);
+	}
+
+	/**
+	 * Records a failed conversion.
+	 */
+	void addFailed()
+	{
+		failed.incrementAndGet();
+	}
+
+	/**
+	 * @param nanos Time taken to start a GPSBabel process
+	 */
+	void addSpawn(long nanos)
+	{
+		spawn.add(nanos);
+	}
+
+	/**
+	 * @param nanos Total time GPSBabel process ran
+	 */
+	void addRun(long nanos)
+	{
+		run.add(nanos);
+	}
+
+	/**
+	 * @param nanos Time taken by an after-conversion action
+	 */
+	void addAfterAction(long nanos)
+	{
+		afterAction.add(nanos);
+	}
+
+	@Override
+	public int getQueueDepth()
+	{
+		return converter.getQueueDepth();
+	}
+
+	@Override
+	public int getActiveWorkers()
+	{
+		return converter.getActiveWorkers();
+	}
+
+	@Override
+	public long getCompleted()
+	{
+		return completed.get();
+	}
+
+	@Override
+	public long getFailed()
+	{
+		return failed.get();
+	}
+
+	@Override
+	public long getBytesIn()
+	{
+		return bytesIn.get();
+	}
+
+	@Override
+	public long getBytesOut()
+	{
+		return bytesOut.get();
+	}
+
+	@Override
+	public long[] getHistogramBucketsMillis()
+	{
+		long[] limits = new long[BUCKETS];
+		for(int i=0; i<BUCKETS - 1; i++)
+		{
+			limits[i] = 1L << i;
+		}
+		limits[BUCKETS - 1] = -1;
+		return limits;
+	}
+
+	@Override
+	public long[] getSpawnHistogram()
+	{
+		return spawn.getCounts();
+	}
+
+	@Override
+	public double getSpawnMeanMillis()
+	{
+		return spawn.getMeanMillis();
+	}
+
+	@Override
+	public long[] getRunHistogram()
+	{
+		return run.getCounts();
+	}
+
+	@Override
+	public double getRunMeanMillis()
+	{
+		return run.getMeanMillis();
+	}
+
+	@Override
+	public long getRunMaxMillis()
+	{
+		return run.getMaxMillis();
+	}
+
+	@Override
+	public long[] getAfterActionHistogram()
+	{
+		return afterAction.getCounts();
+	}
+
+	@Override
+	public double getAfterActionMeanMillis()
+	{
+		return afterAction.getMeanMillis();
+	}
+
+	@Override
+	public void reset()
+	{
+		completed.set(0);
+		failed.set(0);
+		bytesIn.set(0);
+		bytesOut.set(0);
+		spawn.reset();
+		run.reset();
+		afterAction.reset();
+	}
+}
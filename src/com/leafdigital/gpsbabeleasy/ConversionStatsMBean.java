@@ -0,0 +1,102 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+/**
+ * JMX interface for conversion statistics. Histograms are arrays of counts,
+ * one for each bucket in {@link #getHistogramBucketsMillis()}.
+ */
+public interface ConversionStatsMBean
+{
+	/**
+	 * @return Number of conversions waiting in the queue
+	 */
+	public int getQueueDepth();
+
+	/**
+	 * @return Number of conversion workers currently running
+	 */
+	public int getActiveWorkers();
+
+	/**
+	 * @return Number of conversions that succeeded
+	 */
+	public long getCompleted();
+
+	/**
+	 * @return Number of conversions that failed (including cancelled)
+	 */
+	public long getFailed();
+
+	/**
+	 * @return Total size of input files for successful conversions
+	 */
+	public long getBytesIn();
+
+	/**
+	 * @return Total size of output files for successful conversions
+	 */
+	public long getBytesOut();
+
+	/**
+	 * @return Upper limit of each histogram bucket in milliseconds; the last
+	 *   bucket has no limit and is shown as -1
+	 */
+	public long[] getHistogramBucketsMillis();
+
+	/**
+	 * @return Histogram of time taken to start a GPSBabel process
+	 */
+	public long[] getSpawnHistogram();
+
+	/**
+	 * @return Mean time taken to start a GPSBabel process, in milliseconds
+	 */
+	public double getSpawnMeanMillis();
+
+	/**
+	 * @return Histogram of total GPSBabel process run time
+	 */
+	public long[] getRunHistogram();
+
+	/**
+	 * @return Mean GPSBabel process run time, in milliseconds
+	 */
+	public double getRunMeanMillis();
+
+	/**
+	 * @return Maximum GPSBabel process run time, in milliseconds
+	 */
+	public long getRunMaxMillis();
+
+	/**
+	 * @return Histogram of time taken by after-conversion actions
+	 */
+	public long[] getAfterActionHistogram();
+
+	/**
+	 * @return Mean time taken by after-conversion actions, in milliseconds
+	 */
+	public double getAfterActionMeanMillis();
+
+	/**
+	 * Resets all counts and histograms.
+	 */
+	public void reset();
+}
@@ -0,0 +1,2143 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.prefs.Preferences;
+
+import com.leafdigital.gpsbabeleasy.AfterOptions.InFileAction;
+import com.leafdigital.gpsbabeleasy.FormatChooser.Format;
+
+/**
+ * Runs GPSBabel and manages the queue of conversions. This has no user
+ * interface, so it is shared by the main window and the command-line mode.
+ */
+public class Converter
+{
+	/**
+	 * Preferences key for number of conversion workers; defaults to the number
+	 * of processors.
+	 */
+	private final static String PREF_WORKERS = "conversion.workers";
+
+	/**
+	 * Preferences key for the maximum number of files converted by a single
+	 * GPSBabel process using a batch file; 1 turns batching off.
+	 */
+	private final static String PREF_BATCH_SIZE = "conversion.batchSize";
+	private final static int DEFAULT_BATCH_SIZE = 16;
+
+	/**
+	 * GPSBabel reads each input into the same in-memory data set, so this filter
+	 * is used to empty it between files in a batch.
+	 */
+	private final static String CLEAR_DATA_FILTER = "nuketypes,waypoints,tracks,routes";
+
+	/**
+	 * Preferences keys for the conversion timeout. Each run of GPSBabel is
+	 * allowed the base time plus the per-megabyte time for its input files; a
+	 * base time of 0 means no timeout.
+	 */
+	private final static String PREF_TIMEOUT_SECONDS = "conversion.timeoutSeconds",
+		PREF_TIMEOUT_SECONDS_PER_MB = "conversion.timeoutSecondsPerMB";
+	private final static int DEFAULT_TIMEOUT_SECONDS = 60,
+		DEFAULT_TIMEOUT_SECONDS_PER_MB = 30;
+
+	/**
+	 * Preferences key for whether common conversions are done in-process by
+	 * {@link NativeConverter} instead of running GPSBabel.
+	 */
+	private final static String PREF_NATIVE = "conversion.native";
+
+	private final static String CANCELLED_TEXT = "Cancelled";
+
+	private final static String INPUT_KEPT_TEXT =
+		" (input file left alone, as another output failed)";
+
+	/** Maximum number of input files passed to an after-conversion action at once */
+	private final static int MAX_AFTER_BATCH = 100;
+
+	/**
+	 * Single thread used to stop processes that run for too long.
+	 */
+	private final static ScheduledExecutorService watchdog =
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "GPSBabel watchdog");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	private String gpsBabelPath;
+	private Owner owner;
+	private ConversionCache cache;
+	private LineHandler processOut = new PrintLineHandler(System.out),
+		processErr = new PrintLineHandler(System.err);
+
+	/**
+	 * Interface implemented by whatever is using the converter.
+	 */
+	public interface Owner
+	{
+		/**
+		 * Called when a worker starts. Each call is matched by a later call to
+		 * {@link #unlockClose()} when the worker finishes.
+		 */
+		public void lockClose();
+
+		/**
+		 * Called when a worker finishes.
+		 */
+		public void unlockClose();
+	}
+
+	/**
+	 * Receives the result of a single conversion. Each conversion calls
+	 * {@link #setProcessing()} once, followed by exactly one of the other
+	 * methods (or just the failure method, if it fails before starting).
+	 */
+	public interface Status
+	{
+		/**
+		 * Called when a worker begins the conversion.
+		 */
+		public void setProcessing();
+
+		/**
+		 * Successful result.
+		 * @param result Result text
+		 */
+		public void setSuccess(String result);
+
+		/**
+		 * Failure result.
+		 * @param result Result text
+		 */
+		public void setFailure(String result);
+	}
+
+	/**
+	 * @param gpsBabelPath Path to GPSBabel executable
+	 * @param owner Owner
+	 */
+	public Converter(String gpsBabelPath, Owner owner)
+	{
+		this.gpsBabelPath = gpsBabelPath;
+		this.owner = owner;
+
+		// Number of parallel conversions
+		Preferences prefs = Preferences.userNodeForPackage(Converter.class);
+		workerCount = Math.max(1, prefs.getInt(
+			PREF_WORKERS, Runtime.getRuntime().availableProcessors()));
+		batchSize = Math.max(1, prefs.getInt(PREF_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+		timeoutSeconds = Math.max(0, prefs.getInt(
+			PREF_TIMEOUT_SECONDS, DEFAULT_TIMEOUT_SECONDS));
+		timeoutSecondsPerMB = Math.max(0, prefs.getInt(
+			PREF_TIMEOUT_SECONDS_PER_MB, DEFAULT_TIMEOUT_SECONDS_PER_MB));
+		nativeEnabled = prefs.getBoolean(PREF_NATIVE, true);
+
+		stats = new ConversionStats(this);
+	}
+
+	/**
+	 * @return Statistics about conversions so far (call
+	 *   {@link ConversionStats#register()} to publish them over JMX)
+	 */
+	public ConversionStats getStats()
+	{
+		return stats;
+	}
+
+	/**
+	 * @return Path to GPSBabel executable
+	 */
+	public String getGpsBabelPath()
+	{
+		return gpsBabelPath;
+	}
+
+	/**
+	 * Sets the cache used to avoid repeating conversions.
+	 * @param cache Cache, or null for none
+	 */
+	public void setCache(ConversionCache cache)
+	{
+		this.cache = cache;
+	}
+
+	/**
+	 * Runs GPSBabel to get its name and version.
+	 * @return Name and version, e.g. "GPSBabel 1.4.3"
+	 * @throws IOException If GPSBabel can't be run
+	 */
+	public String readGpsBabelNameAndVersion() throws IOException
+	{
+		RunResult result = runGpsBabel("-V");
+		return result.getStdout().trim().replace(" Version ", " ").trim();
+	}
+
+	/**
+	 * Receives output from GPSBabel one line at a time, as it is produced.
+	 */
+	public interface LineHandler
+	{
+		/**
+		 * Called for each line of output. May be called from several threads at
+		 * once if there are several conversions running.
+		 * @param line Line of text, without line break (treated as ISO 8859-1)
+		 */
+		public void line(String line);
+	}
+
+	/**
+	 * Line handler that prints to a stream.
+	 */
+	public static class PrintLineHandler implements LineHandler
+	{
+		private PrintStream stream;
+
+		/**
+		 * @param stream Stream that receives each line
+		 */
+		public PrintLineHandler(PrintStream stream)
+		{
+			this.stream = stream;
+		}
+
+		@Override
+		public void line(String line)
+		{
+			stream.println(line);
+		}
+	}
+
+	/**
+	 * Status that passes everything on to two other statuses, for example a
+	 * table row and something that's waiting for the result.
+	 */
+	public static class StatusPair implements Status
+	{
+		private Status first, second;
+
+		/**
+		 * @param first First status
+		 * @param second Second status
+		 */
+		public StatusPair(Status first, Status second)
+		{
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public void setProcessing()
+		{
+			first.setProcessing();
+			second.setProcessing();
+		}
+
+		@Override
+		public void setSuccess(String result)
+		{
+			first.setSuccess(result);
+			second.setSuccess(result);
+		}
+
+		@Override
+		public void setFailure(String result)
+		{
+			first.setFailure(result);
+			second.setFailure(result);
+		}
+	}
+
+	/**
+	 * Sets the handlers that receive GPSBabel's own output during conversions.
+	 * By default these print to the standard output and error streams.
+	 * @param out Handler for GPSBabel standard output
+	 * @param err Handler for GPSBabel standard error
+	 */
+	public void setProcessHandlers(LineHandler out, LineHandler err)
+	{
+		processOut = out;
+		processErr = err;
+	}
+
+	/**
+	 * Result of running the program.
+	 */
+	public static class RunResult
+	{
+		private int result;
+		private String stdout, stderr, stopReason;
+
+		private RunResult(int result, String stdout, String stderr, String stopReason)
+		{
+			this.result = result;
+			this.stdout = stdout;
+			this.stderr = stderr;
+			this.stopReason = stopReason;
+		}
+
+		/**
+		 * @return Reason the process was stopped before it finished (timeout or
+		 *   cancel), or null if it ran to completion
+		 */
+		public String getStopReason()
+		{
+			return stopReason;
+		}
+
+		/**
+		 * @return Program result integer
+		 */
+		public int getResult()
+		{
+			return result;
+		}
+
+		/**
+		 * @return Standard output (treated as ISO 8859-1); only the last few lines
+		 *   if output was streamed to a handler
+		 */
+		public String getStdout()
+		{
+			return stdout;
+		}
+
+		/**
+		 * @return Standard err (treated as ISO 8859-1); only the last few lines
+		 *   if output was streamed to a handler
+		 */
+		public String getStderr()
+		{
+			return stderr;
+		}
+	}
+
+	/**
+	 * Allows a running GPSBabel process to be stopped from another thread, and
+	 * stops it automatically after a timeout.
+	 */
+	public static class ProcessControl
+	{
+		private long timeout;
+		private Process process;
+		private String stopReason;
+
+		/**
+		 * @param timeout Timeout in milliseconds, or 0 for none
+		 */
+		public ProcessControl(long timeout)
+		{
+			this.timeout = timeout;
+		}
+
+		/**
+		 * Stops the process, if it is running, or prevents it from starting.
+		 * Only the first reason given is kept.
+		 * @param reason Reason for stopping
+		 */
+		public synchronized void stop(String reason)
+		{
+			if(stopReason != null)
+			{
+				return;
+			}
+			stopReason = reason;
+			if(process != null)
+			{
+				process.destroy();
+			}
+		}
+
+		/**
+		 * @return Reason for stopping, or null if not stopped
+		 */
+		public synchronized String getStopReason()
+		{
+			return stopReason;
+		}
+
+		private synchronized void setProcess(Process process)
+		{
+			this.process = process;
+			if(stopReason != null)
+			{
+				process.destroy();
+			}
+		}
+	}
+
+	/**
+	 * Runs the GPSBabel command-line tool and waits for it to complete. All the
+	 * output is kept in memory, so this should only be used for commands with
+	 * limited output.
+	 * @param parameters Parameters
+	 * @return Result of run
+	 * @throws IOException If there's any problem
+	 */
+	public RunResult runGpsBabel(String... parameters) throws IOException
+	{
+		return runGpsBabel(null, null, null, parameters);
+	}
+
+	/**
+	 * Runs the GPSBabel command-line tool and waits for it to complete. Output
+	 * is passed to the handlers line by line, and only the last few lines are
+	 * kept for the result, so memory use doesn't depend on the amount of output.
+	 * @param control Control used to stop the process (and set its timeout), or
+	 *   null if not required
+	 * @param out Handler for standard output, or null to keep all of it
+	 * @param err Handler for standard error, or null to keep all of it
+	 * @param parameters Parameters
+	 * @return Result of run
+	 * @throws IOException If there's any problem
+	 */
+	public RunResult runGpsBabel(final ProcessControl control, LineHandler out,
+		LineHandler err, String... parameters) throws IOException
+	{
+		// Prepare full commandline
+		String[] commandLine = new String[parameters.length + 1];
+		commandLine[0] = gpsBabelPath;
+		System.arraycopy(parameters, 0, commandLine, 1, parameters.length);
+		Process process;
+		long start = System.nanoTime();
+		try
+		{
+			process = Runtime.getRuntime().exec(commandLine, null);
+		}
+		catch(Exception e)
+		{
+			throw new IOException("Error running GPSBabel", e);
+		}
+		stats.addSpawn(System.nanoTime() - start);
+		StreamEater stdout = new StreamEater(process.getInputStream(), out);
+		StreamEater stderr = new StreamEater(process.getErrorStream(), err);
+
+		// Set up control and timeout
+		ScheduledFuture<?> timeout = null;
+		if(control != null)
+		{
+			control.setProcess(process);
+			timeout = scheduleTimeout(control);
+		}
+
+		int value;
+		try
+		{
+			value = process.waitFor();
+		}
+		catch(InterruptedException e)
+		{
+			process.destroy();
+			throw new IOException("Error waiting for GPSBabel result", e);
+		}
+		finally
+		{
+			if(timeout != null)
+			{
+				timeout.cancel(false);
+			}
+			stats.addRun(System.nanoTime() - start);
+		}
+		return new RunResult(value, stdout.getOut(), stderr.getOut(),
+			control == null ? null : control.getStopReason());
+	}
+
+	/**
+	 * Arranges for a control to be stopped when its timeout expires.
+	 * @param control Control
+	 * @return Future that should be cancelled when finished, or null if there
+	 *   is no timeout
+	 */
+	private static ScheduledFuture<?> scheduleTimeout(final ProcessControl control)
+	{
+		if(control.timeout <= 0)
+		{
+			return null;
+		}
+		return watchdog.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				control.stop("Timed out after " + (control.timeout / 1000) + " seconds");
+			}
+		}, control.timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Thread that eats the content of a stream from running a process. It
+	 * either keeps the whole content, or passes each line to a handler and keeps
+	 * only the last few lines.
+	 */
+	static class StreamEater extends Thread
+	{
+		private static final int BUFFER_SIZE = 4096;
+
+		/** Number of lines kept when streaming to a handler */
+		private static final int TAIL_LINES = 20;
+
+		/** Longer lines than this are split, so a single line can't use up memory */
+		private static final int MAX_LINE = 8192;
+
+		private InputStream stream;
+		private LineHandler handler;
+
+		private String[] tail;
+		private int tailNext, tailCount;
+
+		private String out;
+		private Throwable error;
+
+		StreamEater(InputStream stream, LineHandler handler)
+		{
+			this.stream = stream;
+			this.handler = handler;
+			if(handler != null)
+			{
+				tail = new String[TAIL_LINES];
+			}
+			start();
+		}
+
+		@Override
+		public void run()
+		{
+			ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
+			try
+			{
+				byte[] buffer = new byte[BUFFER_SIZE];
+				while(true)
+				{
+					int read = stream.read(buffer);
+					if(read == -1)
+					{
+						break;
+					}
+					if(handler == null)
+					{
+						outBytes.write(buffer, 0, read);
+						continue;
+					}
+
+					// Pass on each complete line
+					int start = 0;
+					for(int i=0; i<read; i++)
+					{
+						if(buffer[i] == '\n')
+						{
+							outBytes.write(buffer, start, i - start);
+							line(outBytes);
+							start = i + 1;
+						}
+						else if(outBytes.size() + i - start >= MAX_LINE)
+						{
+							outBytes.write(buffer, start, i - start);
+							line(outBytes);
+							start = i;
+						}
+					}
+					outBytes.write(buffer, start, read - start);
+				}
+				if(handler != null && outBytes.size() > 0)
+				{
+					line(outBytes);
+				}
+			}
+			catch(Throwable t)
+			{
+				setError(t);
+			}
+			finally
+			{
+				try
+				{
+					stream.close();
+				}
+				catch(Throwable t)
+				{
+					setError(t);
+				}
+
+				synchronized(this)
+				{
+					// Use ISO-8859-1 just so it can't error
+					try
+					{
+						if(handler == null)
+						{
+							out = new String(outBytes.toByteArray(), "ISO-8859-1");
+						}
+						else
+						{
+							StringBuilder lines = new StringBuilder();
+							for(int i=0; i<tailCount; i++)
+							{
+								lines.append(tail[(tailNext - tailCount + i + TAIL_LINES) % TAIL_LINES]);
+								lines.append('\n');
+							}
+							out = lines.toString();
+						}
+					}
+					catch(Throwable t)
+					{
+						setError(t);
+						out = "?";
+					}
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Sends a line to the handler and adds it to the tail.
+		 * @param lineBytes Line (will be cleared)
+		 * @throws IOException If there's an error converting text
+		 */
+		private void line(ByteArrayOutputStream lineBytes) throws IOException
+		{
+			String line = lineBytes.toString("ISO-8859-1");
+			lineBytes.reset();
+			if(line.endsWith("\r"))
+			{
+				line = line.substring(0, line.length() - 1);
+			}
+			handler.line(line);
+			tail[tailNext] = line;
+			tailNext = (tailNext + 1) % TAIL_LINES;
+			tailCount = Math.min(tailCount + 1, TAIL_LINES);
+		}
+
+		private void setError(Throwable t)
+		{
+			// Only take the first error
+			if(error == null)
+			{
+				error = t;
+			}
+		}
+
+		/**
+		 * @return Output text as string
+		 * @throws IOException If there was any error during the process
+		 */
+		String getOut() throws IOException
+		{
+			synchronized(this)
+			{
+				while(out == null)
+				{
+					try
+					{
+						wait();
+					}
+					catch(InterruptedException e)
+					{
+						setError(e);
+					}
+				}
+				if(error != null)
+				{
+					throw new IOException("Error reading process stream", error);
+				}
+				return out;
+			}
+		}
+	}
+
+	private LinkedList<Conversion> queue = new LinkedList<Conversion>();
+	private int threadsRunning, workerCount, workerIndex, batchSize,
+		timeoutSeconds, timeoutSecondsPerMB;
+	private boolean nativeEnabled;
+
+	/**
+	 * Conversions that have not yet finished, so they can be cancelled.
+	 */
+	private IdentityHashMap<Status, Conversion> unfinished =
+		new IdentityHashMap<Status, Conversion>();
+
+	private ConversionStats stats;
+
+	/**
+	 * Conversions waiting for their after-conversion action; synchronize on
+	 * the queue to use.
+	 */
+	private LinkedList<Conversion> afterQueue = new LinkedList<Conversion>();
+	private boolean afterRunning;
+
+	/**
+	 * Target files currently being written by a worker, so that two workers
+	 * don't both decide the same target is free.
+	 */
+	private HashSet<File> activeTargets = new HashSet<File>();
+
+	/**
+	 * @return Maximum number of conversions that run at once
+	 */
+	public int getWorkerCount()
+	{
+		synchronized(queue)
+		{
+			return workerCount;
+		}
+	}
+
+	/**
+	 * @return Number of conversions waiting in the queue
+	 */
+	public int getQueueDepth()
+	{
+		synchronized(queue)
+		{
+			return queue.size();
+		}
+	}
+
+	/**
+	 * @return Number of conversion workers currently running
+	 */
+	public int getActiveWorkers()
+	{
+		synchronized(queue)
+		{
+			return threadsRunning;
+		}
+	}
+
+	/**
+	 * @return Maximum number of files converted by one GPSBabel process
+	 */
+	public int getBatchSize()
+	{
+		synchronized(queue)
+		{
+			return batchSize;
+		}
+	}
+
+	/**
+	 * Sets the maximum number of files converted by one GPSBabel process.
+	 * @param batchSize Batch size; 1 turns batching off
+	 * @throws IllegalArgumentException If size is less than 1
+	 */
+	public void setBatchSize(int batchSize) throws IllegalArgumentException
+	{
+		if(batchSize < 1)
+		{
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		}
+		synchronized(queue)
+		{
+			this.batchSize = batchSize;
+		}
+	}
+
+	/**
+	 * @return Additional time allowed per megabyte of input, in seconds
+	 */
+	public int getTimeoutSecondsPerMB()
+	{
+		synchronized(queue)
+		{
+			return timeoutSecondsPerMB;
+		}
+	}
+
+	/**
+	 * Sets the time allowed for each run of GPSBabel before it is stopped.
+	 * @param seconds Base time in seconds, or 0 for no timeout
+	 * @param secondsPerMB Additional time per megabyte of input
+	 * @throws IllegalArgumentException If either value is negative
+	 */
+	public void setTimeout(int seconds, int secondsPerMB)
+		throws IllegalArgumentException
+	{
+		if(seconds < 0 || secondsPerMB < 0)
+		{
+			throw new IllegalArgumentException("Timeout cannot be negative");
+		}
+		synchronized(queue)
+		{
+			timeoutSeconds = seconds;
+			timeoutSecondsPerMB = secondsPerMB;
+		}
+	}
+
+	/**
+	 * @return True if common conversions are done in-process
+	 */
+	public boolean isNativeEnabled()
+	{
+		synchronized(queue)
+		{
+			return nativeEnabled;
+		}
+	}
+
+	/**
+	 * Sets whether common conversions are done in-process, instead of running
+	 * GPSBabel for every file.
+	 * @param nativeEnabled True to convert in-process where possible
+	 */
+	public void setNativeEnabled(boolean nativeEnabled)
+	{
+		synchronized(queue)
+		{
+			this.nativeEnabled = nativeEnabled;
+		}
+	}
+
+	/**
+	 * @param conversion Conversion
+	 * @return True if the conversion should be done in-process
+	 */
+	private boolean isNative(Conversion conversion)
+	{
+		return isNativeEnabled() && conversion.mergeName == null &&
+			conversion.filters.isEmpty() &&
+			NativeConverter.canConvert(conversion.in.getCode(), conversion.out.getCode());
+	}
+
+	/**
+	 * @param bytes Total size of input files
+	 * @return Timeout in milliseconds for converting them, or 0 for none
+	 */
+	private long getTimeout(long bytes)
+	{
+		synchronized(queue)
+		{
+			if(timeoutSeconds == 0)
+			{
+				return 0;
+			}
+			return timeoutSeconds * 1000L +
+				(bytes * timeoutSecondsPerMB * 1000L) / (1024 * 1024);
+		}
+	}
+
+	/**
+	 * Marks a conversion as successful.
+	 * @param conversion Conversion
+	 * @param target Output file
+	 * @param text Text to display
+	 */
+	private void succeeded(Conversion conversion, File target, String text)
+	{
+		stats.addCompleted(conversion.inputBytes, target.length());
+		conversion.status.setSuccess(text);
+	}
+
+	/**
+	 * Marks a conversion as failed.
+	 * @param conversion Conversion
+	 * @param text Text to display
+	 */
+	private void failed(Conversion conversion, String text)
+	{
+		stats.addFailed();
+		conversion.status.setFailure(text);
+
+		// Other outputs from the same input no longer wait for the input action
+		FanOut fanOut = conversion.fanOut;
+		if(fanOut == null || conversion.inAction.isNothing())
+		{
+			return;
+		}
+		List<Conversion> waiting;
+		synchronized(queue)
+		{
+			fanOut.failed = true;
+			if(--fanOut.remaining > 0)
+			{
+				return;
+			}
+			waiting = fanOut.succeeded;
+		}
+		for(Conversion other : waiting)
+		{
+			succeeded(other, other.resultFile, other.resultText + INPUT_KEPT_TEXT);
+		}
+	}
+
+	/**
+	 * Completes a conversion whose output is in place. The after-conversion
+	 * action on the input file runs later on a separate thread, together with
+	 * any others that are waiting, so the worker can go straight on to the next
+	 * file. The conversion is marked as successful once the action has worked.
+	 * @param conversion Conversion
+	 * @param target Output file
+	 * @param text Text to display if successful
+	 */
+	private void complete(Conversion conversion, File target, String text)
+	{
+		if(conversion.inAction.isNothing())
+		{
+			succeeded(conversion, target, text);
+			return;
+		}
+		conversion.resultFile = target;
+		conversion.resultText = text;
+
+		// With several outputs, the input action waits until they have all worked
+		FanOut fanOut = conversion.fanOut;
+		if(fanOut != null)
+		{
+			boolean inputKept;
+			synchronized(queue)
+			{
+				fanOut.succeeded.add(conversion);
+				if(--fanOut.remaining > 0)
+				{
+					return;
+				}
+				inputKept = fanOut.failed;
+			}
+			if(inputKept)
+			{
+				for(Conversion other : fanOut.succeeded)
+				{
+					succeeded(other, other.resultFile, other.resultText + INPUT_KEPT_TEXT);
+				}
+				return;
+			}
+		}
+
+		synchronized(queue)
+		{
+			afterQueue.add(conversion);
+			if(!afterRunning)
+			{
+				new AfterActionThread();
+			}
+		}
+	}
+
+	/**
+	 * Thread that carries out after-conversion actions on input files. It runs
+	 * while there are actions waiting, passing each action as many of its
+	 * files as possible at once.
+	 */
+	private class AfterActionThread extends Thread
+	{
+		/**
+		 * Must be called while synchronized on the queue. The thread holds a
+		 * close lock while it runs.
+		 */
+		private AfterActionThread()
+		{
+			super("After-conversion actions");
+			afterRunning = true;
+			owner.lockClose();
+			start();
+		}
+
+		@Override
+		public void run()
+		{
+			while(true)
+			{
+				List<Conversion> batch = new ArrayList<Conversion>();
+				synchronized(queue)
+				{
+					if(afterQueue.isEmpty())
+					{
+						afterRunning = false;
+						owner.unlockClose();
+						return;
+					}
+					while(!afterQueue.isEmpty() && batch.size() < MAX_AFTER_BATCH)
+					{
+						batch.add(afterQueue.removeFirst());
+					}
+				}
+
+				// Group by action (keeping the original order within each)
+				Map<InFileAction, List<Conversion>> groups =
+					new LinkedHashMap<InFileAction, List<Conversion>>();
+				for(Conversion conversion : batch)
+				{
+					List<Conversion> group = groups.get(conversion.inAction);
+					if(group == null)
+					{
+						group = new ArrayList<Conversion>();
+						groups.put(conversion.inAction, group);
+					}
+					group.add(conversion);
+				}
+				for(Map.Entry<InFileAction, List<Conversion>> entry : groups.entrySet())
+				{
+					runAction(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+
+		/**
+		 * Runs an action on the input files of some conversions, and reports
+		 * the results.
+		 * @param action Action
+		 * @param conversions Conversions that all use that action
+		 */
+		private void runAction(InFileAction action, List<Conversion> conversions)
+		{
+			// Merged conversions have several input files each
+			List<File> inputs = new ArrayList<File>();
+			for(Conversion conversion : conversions)
+			{
+				inputs.addAll(Arrays.asList(conversion.inputs));
+			}
+			File[] files = inputs.toArray(new File[inputs.size()]);
+
+			long start = System.nanoTime();
+			IOException[] errors;
+			try
+			{
+				errors = action.afterConversion(files);
+			}
+			catch(Throwable t)
+			{
+				t.printStackTrace();
+				errors = new IOException[files.length];
+				Arrays.fill(errors, new IOException(t.getMessage()));
+			}
+			long each = (System.nanoTime() - start) / files.length;
+
+			for(int i=0, fileIndex=0; i<conversions.size(); i++)
+			{
+				Conversion conversion = conversions.get(i);
+				stats.addAfterAction(each);
+
+				// Use the first error from any of its input files
+				IOException error = null;
+				for(int j=0; j<conversion.inputs.length; j++, fileIndex++)
+				{
+					if(error == null)
+					{
+						error = errors[fileIndex];
+					}
+				}
+
+				// A conversion with several outputs reports for all of them
+				List<Conversion> outputs = conversion.fanOut == null
+					? Collections.singletonList(conversion) : conversion.fanOut.succeeded;
+				for(Conversion output : outputs)
+				{
+					try
+					{
+						if(error == null)
+						{
+							succeeded(output, output.resultFile, output.resultText);
+						}
+						else
+						{
+							stats.addFailed();
+							output.status.setFailure("Error: " + error.getMessage());
+						}
+					}
+					catch(Throwable t)
+					{
+						// Don't let one bad status stop the others being reported
+						t.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Cancels a conversion. If it is waiting in the queue it is removed; if it
+	 * is running, its GPSBabel process is stopped.
+	 * @param status Status that was passed in for the conversion
+	 * @return True if the conversion was cancelled, false if it had already
+	 *   finished
+	 */
+	public boolean cancel(Status status)
+	{
+		synchronized(queue)
+		{
+			Conversion conversion = unfinished.get(status);
+			if(conversion == null)
+			{
+				return false;
+			}
+			cancel(conversion);
+			return true;
+		}
+	}
+
+	/**
+	 * Cancels all conversions that have not yet finished.
+	 */
+	public void cancelAll()
+	{
+		synchronized(queue)
+		{
+			for(Conversion conversion : new ArrayList<Conversion>(unfinished.values()))
+			{
+				cancel(conversion);
+			}
+		}
+	}
+
+	/**
+	 * Cancels a conversion. Must be called while synchronized on the queue.
+	 * @param conversion Conversion
+	 */
+	private void cancel(Conversion conversion)
+	{
+		conversion.cancelled = true;
+		if(queue.remove(conversion))
+		{
+			// Not held by a worker, so report it here
+			unfinished.remove(conversion.status);
+			failed(conversion, CANCELLED_TEXT);
+		}
+		else if(conversion.control != null)
+		{
+			// Worker will report it when the process stops
+			conversion.control.stop(CANCELLED_TEXT);
+		}
+	}
+
+	/**
+	 * Sets the maximum number of conversions that run at once. Workers that are
+	 * already running are not stopped; the new limit applies as they finish.
+	 * @param workerCount Number of workers (at least 1)
+	 * @throws IllegalArgumentException If count is less than 1
+	 */
+	public void setWorkerCount(int workerCount) throws IllegalArgumentException
+	{
+		if(workerCount < 1)
+		{
+			throw new IllegalArgumentException("Must have at least one worker");
+		}
+		synchronized(queue)
+		{
+			this.workerCount = workerCount;
+			startWorkers();
+		}
+	}
+
+	private static class Conversion
+	{
+		private FormatChooser.Format in, out;
+		private InFileAction inAction;
+		private File file, outFolder;
+		/** All input files; more than the main file if they are merged */
+		private File[] inputs;
+		/** Name for merged output (without extension), or null if not merged */
+		private String mergeName;
+		/** Filters run between reading and writing */
+		private FilterChain filters = FilterChain.NONE;
+
+		/** Set by worker once the conversion has been checked */
+		private File targetFile;
+		/**
+		 * Temporary file that output is written to, in the same folder as the
+		 * target, so that the target only appears once it's complete
+		 */
+		private File tempFile;
+		private Status status;
+		/** Set by worker when it takes the conversion */
+		private boolean started;
+		/** True if this conversion must not be batched with others */
+		private boolean single;
+		/** Set if the user cancels the conversion */
+		private boolean cancelled;
+		/** Control for the GPSBabel process while it is running */
+		private ProcessControl control;
+		/** Key in conversion cache, once calculated */
+		private String cacheKey;
+		/** Set if the in-process converter couldn't do this conversion */
+		private boolean nativeFailed;
+		/** Size of input file, recorded before conversion */
+		private long inputBytes;
+		/** Output file and result text, kept until the after-conversion action */
+		private File resultFile;
+		private String resultText;
+		/** Other outputs from the same input, or null if this is the only one */
+		private FanOut fanOut;
+
+		private Conversion(Format in, Format out, File file, InFileAction inAction,
+			File outFolder, Status status)
+		{
+			this.status = status;
+			this.in = in;
+			this.out = out;
+			this.file = file;
+			this.inputs = new File[] { file };
+			this.inAction = inAction;
+			this.outFolder = outFolder;
+
+			// Batch files quote each parameter, so paths with quotes can't go in them
+			single = file.getAbsolutePath().indexOf('"') != -1 ||
+				(outFolder != null && outFolder.getAbsolutePath().indexOf('"') != -1);
+		}
+
+		/**
+		 * @param other Other conversion
+		 * @return True if the other conversion can go in the same batch as this
+		 */
+		private boolean canBatchWith(Conversion other)
+		{
+			return !single && !other.single &&
+				in.getCode().equals(other.in.getCode()) &&
+				out.getCode().equals(other.out.getCode()) &&
+				filters.equals(other.filters);
+		}
+	}
+
+	/**
+	 * Conversions of one input file to several output formats. These are
+	 * always run in the same GPSBabel process, so the input is only read once,
+	 * and the action on the input file only happens once all outputs have
+	 * worked. Synchronize on the queue to use.
+	 */
+	private static class FanOut
+	{
+		/** Number of outputs that haven't finished yet */
+		private int remaining;
+		/** True if any output failed */
+		private boolean failed;
+		/** Outputs that have worked, waiting for the rest */
+		private List<Conversion> succeeded = new ArrayList<Conversion>();
+	}
+
+	/**
+	 * Adds files to the conversion queue, converting each one to several
+	 * output formats. The outputs for each file are written by the same
+	 * GPSBabel process, and each has its own status.
+	 * @param in Input format
+	 * @param outs Output formats (each with a different code)
+	 * @param filters Filters to run on the data before it is written
+	 * @param inAction Action on input files once all outputs have worked
+	 * @param outFolder Target folder, or null to use same folder as input
+	 * @param files Files to convert
+	 * @param statuses Status for each output of each file, in order by file
+	 *   then output (so there are files.length * outs.length)
+	 */
+	public void convert(Format in, Format[] outs, FilterChain filters,
+		InFileAction inAction, File outFolder, File[] files, Status[] statuses)
+	{
+		synchronized(queue)
+		{
+			for(int i=0; i<files.length; i++)
+			{
+				FanOut fanOut = null;
+				if(outs.length > 1)
+				{
+					fanOut = new FanOut();
+					fanOut.remaining = outs.length;
+				}
+				for(int j=0; j<outs.length; j++)
+				{
+					Status status = statuses[i * outs.length + j];
+					Conversion conversion = new Conversion(
+						in, outs[j], files[i], inAction, outFolder, status);
+					conversion.filters = filters;
+					conversion.fanOut = fanOut;
+					queue.add(conversion);
+					unfinished.put(status, conversion);
+				}
+			}
+			startWorkers();
+		}
+	}
+
+	/**
+	 * Adds a merge to the conversion queue. All the files are read by one
+	 * GPSBabel process and written to a single output file for each output
+	 * format. The results are not cached.
+	 * @param in Input format
+	 * @param outs Output formats (each with a different code)
+	 * @param filters Filters to run on the merged data before it is written
+	 * @param inAction Action on all the input files once all outputs have
+	 *   worked
+	 * @param outFolder Target folder, or null to use the folder of the first
+	 *   input file
+	 * @param files Files to merge, in the order they should be read
+	 * @param name Name for the output files, without extension
+	 * @param statuses Status for each output
+	 */
+	public void merge(Format in, Format[] outs, FilterChain filters,
+		InFileAction inAction, File outFolder, File[] files, String name,
+		Status[] statuses)
+	{
+		synchronized(queue)
+		{
+			FanOut fanOut = null;
+			if(outs.length > 1)
+			{
+				fanOut = new FanOut();
+				fanOut.remaining = outs.length;
+			}
+			for(int j=0; j<outs.length; j++)
+			{
+				Conversion conversion = new Conversion(
+					in, outs[j], files[0], inAction, outFolder, statuses[j]);
+				conversion.inputs = files.clone();
+				conversion.mergeName = name;
+				conversion.filters = filters;
+				conversion.single = true;
+				conversion.fanOut = fanOut;
+				queue.add(conversion);
+				unfinished.put(statuses[j], conversion);
+			}
+			startWorkers();
+		}
+	}
+
+	/**
+	 * Starts enough workers to handle the queue, up to the worker limit. Must be
+	 * called while synchronized on the queue.
+	 */
+	private void startWorkers()
+	{
+		// Running workers are all busy (they exit as soon as the queue is empty)
+		// so each queued item can use a new worker
+		int needed = Math.min(workerCount - threadsRunning, queue.size());
+		for(int i=0; i<needed; i++)
+		{
+			new ConversionThread();
+		}
+	}
+
+	/**
+	 * Takes the next conversion from the queue along with any others that can be
+	 * run in the same GPSBabel process. Must be called while synchronized on the
+	 * queue, which must not be empty.
+	 * @return List of one or more conversions
+	 */
+	private List<Conversion> takeBatch()
+	{
+		List<Conversion> batch = new ArrayList<Conversion>();
+		Conversion first = queue.removeFirst();
+		batch.add(first);
+
+		// Share the remaining queue out between workers, so that one worker
+		// doesn't take everything while the others sit idle
+		int limit = Math.min(batchSize, (queue.size() + workerCount) / workerCount);
+		for(Iterator<Conversion> i = queue.iterator(); i.hasNext() && batch.size() < limit;)
+		{
+			Conversion conversion = i.next();
+			if(first.canBatchWith(conversion))
+			{
+				batch.add(conversion);
+				i.remove();
+			}
+		}
+
+		// Other outputs from the same inputs go in the same batch
+		Set<FanOut> fanOuts = new HashSet<FanOut>();
+		for(Conversion conversion : batch)
+		{
+			if(conversion.fanOut != null)
+			{
+				fanOuts.add(conversion.fanOut);
+			}
+		}
+		if(fanOuts.isEmpty())
+		{
+			return batch;
+		}
+		for(Iterator<Conversion> i = queue.iterator(); i.hasNext();)
+		{
+			Conversion conversion = i.next();
+			if(conversion.fanOut != null && fanOuts.contains(conversion.fanOut))
+			{
+				batch.add(conversion);
+				i.remove();
+			}
+		}
+
+		// Put outputs from the same input next to each other
+		Map<Object, List<Conversion>> groups = new LinkedHashMap<Object, List<Conversion>>();
+		for(Conversion conversion : batch)
+		{
+			Object key = conversion.fanOut == null ? conversion : conversion.fanOut;
+			List<Conversion> group = groups.get(key);
+			if(group == null)
+			{
+				group = new ArrayList<Conversion>();
+				groups.put(key, group);
+			}
+			group.add(conversion);
+		}
+		batch.clear();
+		for(List<Conversion> group : groups.values())
+		{
+			batch.addAll(group);
+		}
+		return batch;
+	}
+
+	private class ConversionThread extends Thread
+	{
+		/**
+		 * Must be called while synchronized on the queue. Each worker holds its
+		 * own close lock, so the window can't close while any of them is busy.
+		 */
+		private ConversionThread()
+		{
+			super("Conversion worker " + (++workerIndex));
+			threadsRunning++;
+			owner.lockClose();
+			start();
+		}
+
+		@Override
+		public void run()
+		{
+			while(true)
+			{
+				List<Conversion> batch;
+				synchronized(queue)
+				{
+					// Exit if there's nothing to do, or if the worker limit was reduced
+					if(queue.isEmpty() || threadsRunning > workerCount)
+					{
+						threadsRunning--;
+						owner.unlockClose();
+						return;
+					}
+					batch = takeBatch();
+				}
+
+				// Check each conversion, dropping any that fail
+				List<Conversion> ready = new ArrayList<Conversion>();
+				for(Conversion conversion : batch)
+				{
+					if(prepare(conversion))
+					{
+						ready.add(conversion);
+					}
+					else
+					{
+						forget(conversion);
+					}
+				}
+
+				// Use cached results where possible, then convert in-process
+				for(Iterator<Conversion> i = ready.iterator(); i.hasNext();)
+				{
+					Conversion conversion = i.next();
+					if(convertFromCache(conversion) || convertNative(conversion))
+					{
+						i.remove();
+					}
+				}
+
+				if(ready.isEmpty())
+				{
+					continue;
+				}
+				if(isSingleInput(ready))
+				{
+					convertSingle(ready);
+				}
+				else
+				{
+					convertBatch(ready);
+				}
+			}
+		}
+
+		/**
+		 * Marks a conversion as processing, works out its target file, and checks
+		 * it can go ahead.
+		 * @param conversion Conversion
+		 * @return True if conversion can go ahead; false if it has been marked as
+		 *   failed
+		 */
+		private boolean prepare(Conversion conversion)
+		{
+			// Mark as processing (unless this was requeued from a failed batch)
+			Status status = conversion.status;
+			if(!conversion.started)
+			{
+				conversion.started = true;
+				for(File input : conversion.inputs)
+				{
+					conversion.inputBytes += input.length();
+				}
+				status.setProcessing();
+			}
+
+			try
+			{
+				// Check it wasn't cancelled after leaving the queue
+				synchronized(queue)
+				{
+					if(conversion.cancelled)
+					{
+						failed(conversion, CANCELLED_TEXT);
+						return false;
+					}
+				}
+
+				// Work out new name for the file
+				File targetFolder = conversion.outFolder;
+				if(targetFolder == null)
+				{
+					targetFolder = conversion.file.getParentFile();
+				}
+				String baseName = conversion.mergeName != null ? conversion.mergeName :
+					conversion.file.getName().replaceFirst("\\.[^.]+$", "");
+				File targetFile = new File(targetFolder,
+					baseName + "." + conversion.out.getCode()).getCanonicalFile();
+
+				// Check they're not the same
+				for(File input : conversion.inputs)
+				{
+					if(targetFile.equals(input.getCanonicalFile()))
+					{
+						failed(conversion, "Target file would have same name as source");
+						return false;
+					}
+				}
+
+				// Check it doesn't exist already, and isn't about to
+				boolean exists;
+				synchronized(queue)
+				{
+					exists = targetFile.exists() || activeTargets.contains(targetFile);
+				}
+				if(exists)
+				{
+					// It might be left from converting the same file before
+					if(cache != null && conversion.mergeName == null &&
+						targetFile.exists() &&
+						(cache.matches(getCacheKey(conversion), targetFile) ||
+						(isNative(conversion) &&
+						cache.matches(getCacheKey(conversion, false), targetFile))))
+					{
+						complete(conversion, targetFile,
+							"\u2192 " + targetFile.getName() + " (already converted)");
+						return false;
+					}
+					failed(conversion, "Target file already exists");
+					return false;
+				}
+
+				// Check it doesn't exist already
+				if(!targetFile.getParentFile().canWrite())
+				{
+					failed(conversion, "Target file not writable");
+					return false;
+				}
+
+				// Reserve the target file
+				synchronized(queue)
+				{
+					if(!activeTargets.add(targetFile))
+					{
+						failed(conversion, "Target file already exists");
+						return false;
+					}
+				}
+				conversion.targetFile = targetFile;
+
+				// Temporary name is fixed, so anything left from an interrupted run
+				// is simply replaced
+				conversion.tempFile = new File(targetFile.getParentFile(),
+					"." + targetFile.getName() + ".part");
+				conversion.tempFile.delete();
+				return true;
+			}
+			catch(Throwable t)
+			{
+				failed(conversion, "Error: " + t.getMessage());
+				t.printStackTrace();
+				return false;
+			}
+		}
+
+		/**
+		 * Copies the result of a conversion from the cache, if it's there.
+		 * @param conversion Conversion
+		 * @return True if the conversion is complete
+		 */
+		private boolean convertFromCache(Conversion conversion)
+		{
+			if(cache == null || conversion.mergeName != null)
+			{
+				return false;
+			}
+			try
+			{
+				if(!cache.get(getCacheKey(conversion), conversion.tempFile))
+				{
+					return false;
+				}
+			}
+			catch(IOException e)
+			{
+				// Can't read input to get key, so let GPSBabel report the error
+				return false;
+			}
+			if(ResultClassifier.checkOutput(conversion.tempFile) != null)
+			{
+				// Damaged cache entry; convert the file again instead
+				conversion.tempFile.delete();
+				return false;
+			}
+
+			try
+			{
+				commit(conversion);
+				complete(conversion, conversion.targetFile,
+					"\u2192 " + conversion.targetFile.getName() + " (from cache)");
+			}
+			catch(Throwable t)
+			{
+				failed(conversion, "Error: " + t.getMessage());
+				t.printStackTrace();
+			}
+			finally
+			{
+				release(conversion);
+				forget(conversion);
+			}
+			return true;
+		}
+
+		/**
+		 * @param conversion Conversion
+		 * @return Key for the conversion in the cache (which must exist), for
+		 *   the engine that is going to do the conversion
+		 * @throws IOException If the input file can't be read
+		 */
+		private String getCacheKey(Conversion conversion) throws IOException
+		{
+			if(conversion.cacheKey == null)
+			{
+				conversion.cacheKey = getCacheKey(conversion,
+					isNative(conversion) && !conversion.nativeFailed);
+			}
+			return conversion.cacheKey;
+		}
+
+		/**
+		 * @param conversion Conversion
+		 * @param nativeEngine True for the key of an in-process result, false
+		 *   for a GPSBabel one
+		 * @return Key for the conversion in the cache (which must exist)
+		 * @throws IOException If the input file can't be read
+		 */
+		private String getCacheKey(Conversion conversion, boolean nativeEngine)
+			throws IOException
+		{
+			// In-process results aren't identical to GPSBabel, so keep them apart
+			// (native2 because earlier in-process results could be missing data);
+			// filters are only added when there are some, so existing keys still work
+			String engine = nativeEngine ? "native2" : "gpsbabel";
+			return conversion.filters.isEmpty()
+				? cache.getKey(conversion.file, conversion.in.getCode(),
+					conversion.out.getCode(), engine)
+				: cache.getKey(conversion.file, conversion.in.getCode(),
+					conversion.out.getCode(), engine, conversion.filters.toString());
+		}
+
+		/**
+		 * Converts in-process, if the formats are supported. Files that can't be
+		 * read in-process are left for GPSBabel.
+		 * @param conversion Conversion
+		 * @return True if the conversion is complete
+		 */
+		private boolean convertNative(Conversion conversion)
+		{
+			if(!isNative(conversion))
+			{
+				return false;
+			}
+
+			ProcessControl control = startControl(Collections.singletonList(conversion));
+			ScheduledFuture<?> timeout = scheduleTimeout(control);
+			try
+			{
+				NativeConverter.convert(conversion.file, conversion.in.getCode(),
+					conversion.tempFile, conversion.out.getCode(), control);
+			}
+			catch(NativeConverter.StoppedException e)
+			{
+				failed(conversion, e.getMessage());
+				release(conversion);
+				forget(conversion);
+				return true;
+			}
+			catch(Throwable t)
+			{
+				// Leave anything unusual to GPSBabel, whose result is cached under
+				// its own key (and may be there already from an earlier run)
+				synchronized(queue)
+				{
+					conversion.control = null;
+				}
+				conversion.nativeFailed = true;
+				conversion.cacheKey = null;
+				return convertFromCache(conversion);
+			}
+			finally
+			{
+				if(timeout != null)
+				{
+					timeout.cancel(false);
+				}
+			}
+
+			try
+			{
+				finish(conversion);
+			}
+			catch(Throwable t)
+			{
+				failed(conversion, "Error: " + t.getMessage());
+				t.printStackTrace();
+			}
+			finally
+			{
+				release(conversion);
+				forget(conversion);
+			}
+			return true;
+		}
+
+		/**
+		 * @param conversions Conversions (not empty)
+		 * @return True if the conversions are all outputs from the same input
+		 */
+		private boolean isSingleInput(List<Conversion> conversions)
+		{
+			Conversion first = conversions.get(0);
+			for(Conversion conversion : conversions)
+			{
+				if(conversion != first &&
+					(conversion.fanOut == null || conversion.fanOut != first.fanOut))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Converts a single file (or a merge of several) in its own GPSBabel
+		 * process, writing one or more outputs.
+		 * @param outputs Conversions of the same input files (to different
+		 *   formats)
+		 */
+		private void convertSingle(List<Conversion> outputs)
+		{
+			Conversion first = outputs.get(0);
+			try
+			{
+				// Do convert
+				List<String> args = new ArrayList<String>(Arrays.asList("-r", "-t",
+					"-i", first.in.getCode()));
+				for(File input : first.inputs)
+				{
+					args.add("-f");
+					args.add(input.getAbsolutePath());
+				}
+				first.filters.addArgs(args);
+				for(Conversion conversion : outputs)
+				{
+					args.add("-o");
+					args.add(conversion.out.getCode());
+					args.add("-F");
+					args.add(conversion.tempFile.getAbsolutePath());
+				}
+				ProcessControl control = startControl(outputs);
+				RunResult result = runGpsBabel(control, processOut, processErr,
+					args.toArray(new String[args.size()]));
+
+				// Stopped by timeout or cancel
+				if(result.getStopReason() != null)
+				{
+					for(Conversion conversion : outputs)
+					{
+						conversion.tempFile.delete();
+						failed(conversion, result.getStopReason());
+					}
+					return;
+				}
+
+				// Check each output worked, so the input file isn't moved if it didn't
+				for(Conversion conversion : outputs)
+				{
+					String failure = ResultClassifier.classify(result.getResult(),
+						result.getStderr(), conversion.tempFile);
+					if(failure != null)
+					{
+						conversion.tempFile.delete();
+						failed(conversion, failure);
+					}
+					else
+					{
+						try
+						{
+							finish(conversion);
+						}
+						catch(Throwable t)
+						{
+							failed(conversion, "Error: " + t.getMessage());
+							t.printStackTrace();
+						}
+					}
+				}
+			}
+			catch(Throwable t)
+			{
+				for(Conversion conversion : outputs)
+				{
+					failed(conversion, "Error: " + t.getMessage());
+				}
+				t.printStackTrace();
+			}
+			finally
+			{
+				for(Conversion conversion : outputs)
+				{
+					release(conversion);
+					forget(conversion);
+				}
+			}
+		}
+
+		/**
+		 * Converts several files in one GPSBabel process using a batch file. If
+		 * GPSBabel fails part-way through, conversions that didn't complete are
+		 * put back on the queue to run on their own, so that each gets its own
+		 * result.
+		 * @param batch Conversions (all with the same formats)
+		 */
+		private void convertBatch(List<Conversion> batch)
+		{
+			File batchFile = null;
+			try
+			{
+				// Write batch file; each file is read, filtered, written (to each of
+				// its output formats), then cleared
+				batchFile = File.createTempFile("gpsbabeleasy", ".batch");
+				Writer writer = new OutputStreamWriter(new FileOutputStream(batchFile), "UTF-8");
+				try
+				{
+					for(int i=0; i<batch.size();)
+					{
+						Conversion first = batch.get(i);
+						List<String> line = new ArrayList<String>(Arrays.asList(
+							"-i", first.in.getCode(), "-f", first.file.getAbsolutePath()));
+						first.filters.addArgs(line);
+						do
+						{
+							Conversion conversion = batch.get(i++);
+							line.add("-o");
+							line.add(conversion.out.getCode());
+							line.add("-F");
+							line.add(conversion.tempFile.getAbsolutePath());
+						}
+						while(i < batch.size() && first.fanOut != null &&
+							batch.get(i).fanOut == first.fanOut);
+						line.add("-x");
+						line.add(CLEAR_DATA_FILTER);
+						writer.write(getBatchLine(line.toArray(new String[line.size()])));
+					}
+				}
+				finally
+				{
+					writer.close();
+				}
+
+				// Do convert
+				ProcessControl control = startControl(batch);
+				RunResult result = runGpsBabel(control, processOut, processErr,
+					"-r", "-t", "-b", batchFile.getAbsolutePath());
+
+				// GPSBabel stops at the first error, so outputs are complete up to the
+				// last one that exists, which may itself be incomplete
+				int complete = batch.size();
+				if(result.getStopReason() == null && result.getResult() == 0 &&
+					ResultClassifier.findError(result.getStderr()) != null)
+				{
+					// Error message without an exit code can't be matched to a file,
+					// so run them all again on their own
+					complete = 0;
+				}
+				else if(result.getResult() != 0)
+				{
+					complete = 0;
+					for(int i=batch.size() - 1; i>=0; i--)
+					{
+						if(batch.get(i).tempFile.exists())
+						{
+							complete = i;
+							break;
+						}
+					}
+				}
+
+				for(int i=0; i<batch.size(); i++)
+				{
+					Conversion conversion = batch.get(i);
+					if(isCancelled(conversion))
+					{
+						conversion.tempFile.delete();
+						failed(conversion, CANCELLED_TEXT);
+						release(conversion);
+						forget(conversion);
+					}
+					else if(i < complete)
+					{
+						try
+						{
+							String failure = ResultClassifier.checkOutput(conversion.tempFile);
+							if(failure != null)
+							{
+								failed(conversion, failure);
+							}
+							else
+							{
+								finish(conversion);
+							}
+						}
+						catch(Throwable t)
+						{
+							failed(conversion, "Error: " + t.getMessage());
+							t.printStackTrace();
+						}
+						finally
+						{
+							release(conversion);
+							forget(conversion);
+						}
+					}
+					else
+					{
+						// If the batch was stopped (for example because one file made it
+						// time out), each remaining file gets its own run and timeout
+						requeueSingle(conversion);
+					}
+				}
+			}
+			catch(Throwable t)
+			{
+				// Batch couldn't run at all; try each file separately
+				t.printStackTrace();
+				for(Conversion conversion : batch)
+				{
+					requeueSingle(conversion);
+				}
+			}
+			finally
+			{
+				if(batchFile != null)
+				{
+					batchFile.delete();
+				}
+			}
+		}
+
+		/**
+		 * Puts a conversion from a failed batch back on the queue to run on its
+		 * own, removing any partial output.
+		 * @param conversion Conversion
+		 */
+		private void requeueSingle(Conversion conversion)
+		{
+			conversion.single = true;
+			release(conversion);
+			synchronized(queue)
+			{
+				conversion.control = null;
+				queue.addFirst(conversion);
+				startWorkers();
+			}
+		}
+
+		/**
+		 * Sets up process control for conversions that are about to run, with a
+		 * timeout based on the size of their input files.
+		 * @param conversions Conversions
+		 * @return New process control
+		 */
+		private ProcessControl startControl(List<Conversion> conversions)
+		{
+			long bytes = 0;
+			for(Conversion conversion : conversions)
+			{
+				for(File input : conversion.inputs)
+				{
+					bytes += input.length();
+				}
+			}
+			ProcessControl control = new ProcessControl(getTimeout(bytes));
+			synchronized(queue)
+			{
+				for(Conversion conversion : conversions)
+				{
+					conversion.control = control;
+					if(conversion.cancelled)
+					{
+						control.stop(CANCELLED_TEXT);
+					}
+				}
+			}
+			return control;
+		}
+
+		/**
+		 * @param conversion Conversion
+		 * @return True if conversion has been cancelled
+		 */
+		private boolean isCancelled(Conversion conversion)
+		{
+			synchronized(queue)
+			{
+				return conversion.cancelled;
+			}
+		}
+
+		/**
+		 * Removes a conversion that has finished from the list of those that can
+		 * be cancelled.
+		 * @param conversion Conversion
+		 */
+		private void forget(Conversion conversion)
+		{
+			synchronized(queue)
+			{
+				unfinished.remove(conversion.status);
+				conversion.control = null;
+			}
+		}
+
+		/**
+		 * Releases the reservation on a conversion's target file, deleting any
+		 * output that wasn't moved into place.
+		 * @param conversion Conversion
+		 */
+		private void release(Conversion conversion)
+		{
+			conversion.tempFile.delete();
+			synchronized(queue)
+			{
+				activeTargets.remove(conversion.targetFile);
+			}
+		}
+
+		/**
+		 * Moves output from the temporary file to the target file, once it has
+		 * been written to disk.
+		 * @param conversion Conversion
+		 * @throws IOException If there is no output, or it can't be moved
+		 */
+		private void commit(Conversion conversion) throws IOException
+		{
+			// Whichever way it was converted, the input file mustn't be moved
+			// unless there is some output
+			String failure = ResultClassifier.checkOutput(conversion.tempFile);
+			if(failure != null)
+			{
+				conversion.tempFile.delete();
+				throw new IOException(failure);
+			}
+
+			// Make sure the data is on disk before the rename makes it visible
+			RandomAccessFile file = new RandomAccessFile(conversion.tempFile, "rw");
+			try
+			{
+				file.getChannel().force(true);
+			}
+			finally
+			{
+				file.close();
+			}
+
+			// Rename within the same folder is atomic
+			if(conversion.targetFile.exists())
+			{
+				throw new IOException("Target file already exists");
+			}
+			if(!conversion.tempFile.renameTo(conversion.targetFile))
+			{
+				throw new IOException("Unable to rename temporary file");
+			}
+		}
+
+		/**
+		 * Moves output into place, stores it in the cache, and passes the
+		 * conversion on for its after-conversion action.
+		 * @param conversion Conversion
+		 * @throws IOException If there is no output, or it can't be moved
+		 */
+		private void finish(Conversion conversion) throws IOException
+		{
+			commit(conversion);
+
+			// Keep result for next time (before the input file is moved)
+			if(cache != null && conversion.mergeName == null)
+			{
+				try
+				{
+					cache.put(getCacheKey(conversion), conversion.targetFile);
+				}
+				catch(IOException e)
+				{
+					// Input can't be read for the key; just don't cache it
+				}
+			}
+
+			// OK, it succeeded (once the after-conversion action is done)
+			String text = "\u2192 " + conversion.targetFile.getName();
+			if(conversion.mergeName != null)
+			{
+				int count = conversion.inputs.length;
+				text += " (merged from " + count + (count == 1 ? " file)" : " files)");
+			}
+			complete(conversion, conversion.targetFile, text);
+		}
+	}
+
+	/**
+	 * Builds a line for a GPSBabel batch file.
+	 * @param parameters Parameters
+	 * @return Line with each parameter quoted, ending in a line break
+	 */
+	private static String getBatchLine(String... parameters)
+	{
+		StringBuilder out = new StringBuilder();
+		for(String parameter : parameters)
+		{
+			if(out.length() > 0)
+			{
+				out.append(' ');
+			}
+			out.append('"').append(parameter).append('"');
+		}
+		out.append('\n');
+		return out.toString();
+	}
+}
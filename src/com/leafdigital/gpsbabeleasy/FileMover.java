@@ -0,0 +1,198 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.prefs.Preferences;
+import java.util.zip.CRC32;
+
+/**
+ * Moves files to a different filesystem, where {@link File#renameTo(File)}
+ * doesn't work. The file is copied to a hidden temporary file beside the
+ * target, written to disk, and then renamed into place, so the target never
+ * exists in a partial state. The original is only deleted after that.
+ */
+public class FileMover
+{
+	/**
+	 * Preferences key; if true, copies are checked by reading both files back
+	 * and comparing checksums.
+	 */
+	private final static String PREF_VERIFY = "move.verify";
+
+	/** Maximum bytes per transferTo call (some platforms limit this) */
+	private final static long TRANSFER_CHUNK = 64 * 1024 * 1024;
+
+	private final static int CHECKSUM_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Moves a file by copying it and deleting the original. Checks the copy
+	 * if the move.verify preference is set.
+	 * @param source Source file
+	 * @param target Target file (must not exist)
+	 * @throws IOException Any error; if so, the target does not exist
+	 */
+	public static void move(File source, File target) throws IOException
+	{
+		move(source, target, Preferences.userNodeForPackage(
+			FileMover.class).getBoolean(PREF_VERIFY, false));
+	}
+
+	/**
+	 * Moves a file by copying it and deleting the original.
+	 * @param source Source file
+	 * @param target Target file (must not exist)
+	 * @param verify If true, reads back the copy and compares checksums
+	 * @throws IOException Any error; if so, the target does not exist
+	 */
+	public static void move(File source, File target, boolean verify)
+		throws IOException
+	{
+		File temp = new File(target.getParentFile(), "." + target.getName() + ".part");
+		boolean committed = false, ok = false;
+		try
+		{
+			copy(source, temp);
+			copyAttributes(source, temp);
+			if(verify && checksum(source) != checksum(temp))
+			{
+				throw new IOException("Copy does not match original");
+			}
+
+			if(target.exists())
+			{
+				throw new IOException("Target already exists");
+			}
+			if(!temp.renameTo(target))
+			{
+				throw new IOException("Rename failed");
+			}
+			committed = true;
+
+			// Delete original file.
+			if(!source.delete())
+			{
+				throw new IOException("Delete failed");
+			}
+			ok = true;
+		}
+		finally
+		{
+			// If anything failed, try to delete the target file so this operation is
+			// atomic, as best we can manage.
+			temp.delete();
+			if(committed && !ok)
+			{
+				target.delete();
+			}
+		}
+	}
+
+	/**
+	 * Copies a file with {@link FileChannel#transferTo}, so the data doesn't
+	 * pass through the Java heap, and forces it to disk.
+	 * @param source Source file
+	 * @param target Target file (replaced if it exists)
+	 * @throws IOException Any error
+	 */
+	static void copy(File source, File target) throws IOException
+	{
+		FileInputStream in = new FileInputStream(source);
+		try
+		{
+			FileOutputStream out = new FileOutputStream(target);
+			try
+			{
+				FileChannel inChannel = in.getChannel(), outChannel = out.getChannel();
+				long length = inChannel.size();
+				for(long done = 0; done < length;)
+				{
+					long transferred = inChannel.transferTo(
+						done, Math.min(length - done, TRANSFER_CHUNK), outChannel);
+					if(transferred <= 0)
+					{
+						throw new IOException("File changed while copying");
+					}
+					done += transferred;
+				}
+				outChannel.force(true);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Copies the modified date and permissions (as far as Java can see them)
+	 * from one file to another.
+	 * @param source Source file
+	 * @param target Target file
+	 * @throws IOException If the date can't be set
+	 */
+	private static void copyAttributes(File source, File target) throws IOException
+	{
+		if(!target.setLastModified(source.lastModified()))
+		{
+			throw new IOException("Date set failed");
+		}
+		if(source.canExecute())
+		{
+			target.setExecutable(true, false);
+		}
+		if(!source.canWrite())
+		{
+			target.setWritable(false, false);
+		}
+	}
+
+	/**
+	 * Calculates a CRC-32 checksum of a file's content.
+	 * @param file File
+	 * @return Checksum
+	 * @throws IOException Any error reading the file
+	 */
+	static long checksum(File file) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(CHECKSUM_BUFFER_SIZE);
+			while(channel.read(buffer) != -1)
+			{
+				crc.update(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return crc.getValue();
+	}
+}
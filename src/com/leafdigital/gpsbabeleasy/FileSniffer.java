@@ -0,0 +1,201 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Quick checks on input files before conversion: guessing the format from
+ * the first few bytes, and counting points. Counting uses memory mapping and
+ * runs in parallel, so it's fast even for very large files.
+ */
+public class FileSniffer
+{
+	/** Number of bytes examined to guess the format */
+	private final static int SNIFF_BYTES = 4096;
+
+	private final static byte[][] GPX_POINTS =
+	{
+		bytes("<trkpt"), bytes("<rtept")
+	};
+	private final static byte[][] NMEA_POINTS =
+	{
+		bytes("RMC,"), bytes("GGA,")
+	};
+
+	/**
+	 * Guesses the format of a file.
+	 * @param file File
+	 * @return GPSBabel format code (gpx, kml or nmea), or null if not known
+	 * @throws IOException If the file can't be read
+	 */
+	public static String sniff(File file) throws IOException
+	{
+		MappedInput input = new MappedInput(file);
+		try
+		{
+			return sniff(input.head(SNIFF_BYTES));
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	/**
+	 * Guesses the format from the start of a file.
+	 * @param head First few bytes of file
+	 * @return GPSBabel format code (gpx, kml or nmea), or null if not known
+	 */
+	static String sniff(byte[] head)
+	{
+		// Skip UTF-8 byte order mark and whitespace
+		int pos = 0;
+		if(head.length >= 3 && head[0] == (byte)0xef && head[1] == (byte)0xbb &&
+			head[2] == (byte)0xbf)
+		{
+			pos = 3;
+		}
+		while(pos < head.length && Character.isWhitespace(head[pos]))
+		{
+			pos++;
+		}
+		if(pos == head.length)
+		{
+			return null;
+		}
+
+		if(head[pos] == '$')
+		{
+			return "nmea";
+		}
+		if(head[pos] == '<')
+		{
+			// Root element is the first one that isn't <?xml or <!-- etc.
+			String text;
+			try
+			{
+				text = new String(head, pos, head.length - pos, "ISO-8859-1");
+			}
+			catch(UnsupportedEncodingException e)
+			{
+				throw new Error(e);
+			}
+			for(int i=text.indexOf('<'); i != -1; i = text.indexOf('<', i + 1))
+			{
+				if(i + 1 < text.length() && (text.charAt(i + 1) == '?' || text.charAt(i + 1) == '!'))
+				{
+					continue;
+				}
+				String element = text.substring(i + 1).replaceFirst("^(?:[A-Za-z0-9_-]+:)?([A-Za-z0-9_-]*)(?s:.*)$", "$1");
+				if(element.equals("gpx"))
+				{
+					return "gpx";
+				}
+				if(element.equals("kml"))
+				{
+					return "kml";
+				}
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Counts route and track points in a file, approximately; this doesn't
+	 * parse the file properly, but counts the text that begins each point.
+	 * @param file File
+	 * @param code GPSBabel format code
+	 * @return Number of points, or -1 if the format isn't supported
+	 * @throws IOException If the file can't be read
+	 */
+	public static long countPoints(File file, String code) throws IOException
+	{
+		final byte[][] patterns;
+		byte delimiter;
+		if(code.equals("gpx"))
+		{
+			// Tags can't span a '>', so that's a safe place to split
+			patterns = GPX_POINTS;
+			delimiter = '>';
+		}
+		else if(code.equals("nmea"))
+		{
+			patterns = NMEA_POINTS;
+			delimiter = '\n';
+		}
+		else
+		{
+			return -1;
+		}
+
+		MappedInput input = new MappedInput(file);
+		try
+		{
+			List<long[]> counts = input.scan(MappedInput.DEFAULT_CHUNK_SIZE, delimiter,
+				new MappedInput.ChunkHandler<long[]>()
+			{
+				@Override
+				public long[] handle(ByteBuffer chunk, long position)
+				{
+					long[] result = new long[patterns.length];
+					for(int i=0; i<patterns.length; i++)
+					{
+						result[i] = MappedInput.count(chunk, patterns[i]);
+					}
+					return result;
+				}
+			}, true);
+
+			long[] total = new long[patterns.length];
+			for(long[] count : counts)
+			{
+				for(int i=0; i<total.length; i++)
+				{
+					total[i] += count[i];
+				}
+			}
+			if(code.equals("nmea"))
+			{
+				// RMC and GGA sentences for the same time make one point
+				return Math.max(total[0], total[1]);
+			}
+			return total[0] + total[1];
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	private static byte[] bytes(String text)
+	{
+		try
+		{
+			return text.getBytes("US-ASCII");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new Error(e);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * A chain of GPSBabel filters (-x options), run in order on the data after it
+ * is read and before it is written. A chain is written as its stages
+ * separated by semicolons, each stage being a filter name and its options as
+ * given to -x, for example "position,distance=1m;simplify,error=0.001k".
+ * <p>
+ * Named presets for common chains are built in, and more can be saved in
+ * preferences.
+ */
+public class FilterChain
+{
+	/** Chain with no filters */
+	public final static FilterChain NONE = new FilterChain(new String[0]);
+
+	/** Preferences key for saved presets (name, tab, chain; one per line) */
+	private final static String PREF_PRESETS = "filters.presets";
+
+	/** Filter name, then options without quotes or line breaks (for batch files) */
+	private final static Pattern STAGE = Pattern.compile("[A-Za-z0-9_]+(,[^\"\r\n]*)?");
+
+	private final static String[][] BUILT_IN_PRESETS =
+	{
+		{ "Remove duplicate points", "position,distance=1m" },
+		{ "Discard poor fixes", "discard,hdop=10,vdop=20" },
+		{ "Simplify tracks", "simplify,crosstrack,error=0.001k" },
+		{ "Merge tracks", "track,merge" },
+		{ "Smaller files",
+			"discard,hdop=10;position,distance=1m;simplify,crosstrack,error=0.001k" },
+	};
+
+	private String[] stages;
+
+	private FilterChain(String[] stages)
+	{
+		this.stages = stages;
+	}
+
+	/**
+	 * @param chain Chain as text, with stages separated by semicolons (blank
+	 *   for none)
+	 * @return Chain
+	 * @throws IllegalArgumentException If a stage isn't in the right form
+	 */
+	public static FilterChain parse(String chain) throws IllegalArgumentException
+	{
+		List<String> stages = new ArrayList<String>();
+		for(String stage : chain.split(";"))
+		{
+			stage = stage.trim();
+			if(stage.length() == 0)
+			{
+				continue;
+			}
+			if(!STAGE.matcher(stage).matches())
+			{
+				throw new IllegalArgumentException("Invalid filter: " + stage);
+			}
+			stages.add(stage);
+		}
+		return stages.isEmpty() ? NONE :
+			new FilterChain(stages.toArray(new String[stages.size()]));
+	}
+
+	/**
+	 * @param nameOrChain Name of a preset, or chain as text
+	 * @return Chain
+	 * @throws IllegalArgumentException If it isn't a preset and isn't a valid
+	 *   chain
+	 */
+	public static FilterChain resolve(String nameOrChain) throws IllegalArgumentException
+	{
+		FilterChain preset = getPresets().get(nameOrChain);
+		return preset != null ? preset : parse(nameOrChain);
+	}
+
+	/**
+	 * @return True if there are no filters
+	 */
+	public boolean isEmpty()
+	{
+		return stages.length == 0;
+	}
+
+	/**
+	 * Adds GPSBabel parameters for the chain.
+	 * @param args List that receives a -x parameter for each stage
+	 */
+	public void addArgs(List<String> args)
+	{
+		for(String stage : stages)
+		{
+			args.add("-x");
+			args.add(stage);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder out = new StringBuilder();
+		for(String stage : stages)
+		{
+			if(out.length() > 0)
+			{
+				out.append(';');
+			}
+			out.append(stage);
+		}
+		return out.toString();
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		return obj instanceof FilterChain &&
+			Arrays.equals(stages, ((FilterChain)obj).stages);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Arrays.hashCode(stages);
+	}
+
+	/**
+	 * @return All presets by name: built-in ones, then saved ones in the order
+	 *   they were saved
+	 */
+	public static LinkedHashMap<String, FilterChain> getPresets()
+	{
+		LinkedHashMap<String, FilterChain> presets = new LinkedHashMap<String, FilterChain>();
+		for(String[] preset : BUILT_IN_PRESETS)
+		{
+			presets.put(preset[0], parse(preset[1]));
+		}
+		for(String line : Settings.get().get(PREF_PRESETS, "").split("\n"))
+		{
+			String[] parts = line.split("\t");
+			if(parts.length != 2)
+			{
+				continue;
+			}
+			try
+			{
+				presets.put(parts[0], parse(parts[1]));
+			}
+			catch(IllegalArgumentException e)
+			{
+				// Ignore damaged preset
+			}
+		}
+		return presets;
+	}
+
+	/**
+	 * Saves a preset in preferences, replacing any saved one with the same name.
+	 * @param name Name (without tabs or line breaks)
+	 * @param chain Chain
+	 */
+	public static void savePreset(String name, FilterChain chain)
+	{
+		name = name.replaceAll("[\t\r\n]", " ");
+		StringBuilder presets = new StringBuilder();
+		for(String line : Settings.get().get(PREF_PRESETS, "").split("\n"))
+		{
+			if(line.length() > 0 && !line.startsWith(name + "\t"))
+			{
+				presets.append(line).append('\n');
+			}
+		}
+		presets.append(name).append('\t').append(chain).append('\n');
+		Settings.get().put(PREF_PRESETS, presets.toString());
+	}
+}
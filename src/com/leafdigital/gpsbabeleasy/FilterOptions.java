@@ -0,0 +1,174 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.awt.BorderLayout;
+import java.awt.event.*;
+import java.util.Map;
+
+import javax.swing.*;
+
+/**
+ * Component that lets people choose GPSBabel filters to run on the data
+ * during conversion, from a list of presets. New presets can be added by
+ * typing in a filter chain.
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class FilterOptions extends JPanel
+{
+	private final static long serialVersionUID = 1L;
+
+	private final static String FILTERS_TEXT = "Filters";
+	private final static String NONE_TEXT = "None";
+	private final static String CUSTOM_TEXT = "Other filters...";
+	private final static String CUSTOM_PROMPT_TEXT =
+		"GPSBabel filters (as given to -x), separated by semicolons:";
+	private final static String NAME_PROMPT_TEXT = "Name for these filters:";
+
+	/** Preferences key for name of the selected preset */
+	private final static String PREF_SELECTED = "filters.selected";
+
+	/** Extra space required either side of combo boxes by theme */
+	private final static int UI_COMBO_EDGE = 5;
+
+	private final static int UI_SMALL_TEXT_ANTIPAD = 3;
+
+	private GpsBabelEasy easy;
+	private JComboBox filters;
+
+	private boolean ignoreComboEvents = false;
+
+	/**
+	 * @param easy Owner
+	 */
+	public FilterOptions(GpsBabelEasy easy)
+	{
+		super(new BorderLayout(1, 1));
+		this.easy = easy;
+		setBorder(BorderFactory.createEmptyBorder(
+			GpsBabelEasy.UI_SPACING - UI_SMALL_TEXT_ANTIPAD,
+			GpsBabelEasy.UI_SPACING - UI_COMBO_EDGE,
+			0, GpsBabelEasy.UI_SPACING - UI_COMBO_EDGE));
+
+		JLabel label = new JLabel(FILTERS_TEXT);
+		label.putClientProperty("JComponent.sizeVariant", "small");
+		label.setBorder(BorderFactory.createEmptyBorder(0, UI_COMBO_EDGE, 0, 0));
+		add(label, BorderLayout.NORTH);
+
+		filters = new JComboBox(new ComboBoxSeparatorModel());
+		filters.setMaximumRowCount(15);
+		filters.setRenderer(new ComboBoxSeparatorRenderer(filters.getRenderer()));
+		add(filters, BorderLayout.SOUTH);
+
+		filters.addItemListener(new ItemListener()
+		{
+			@Override
+			public void itemStateChanged(ItemEvent e)
+			{
+				if(e.getStateChange() == ItemEvent.SELECTED && !ignoreComboEvents)
+				{
+					clicked(e.getItem());
+				}
+			}
+		});
+
+		updateCombo(Settings.get().get(PREF_SELECTED, NONE_TEXT));
+	}
+
+	/**
+	 * @return Selected filters (may be empty)
+	 */
+	public FilterChain getFilters()
+	{
+		FilterChain chain = FilterChain.getPresets().get(filters.getSelectedItem());
+		return chain == null ? FilterChain.NONE : chain;
+	}
+
+	/**
+	 * Handles a selection in the combo box.
+	 * @param selected Selected item
+	 */
+	private void clicked(Object selected)
+	{
+		if(!selected.equals(CUSTOM_TEXT))
+		{
+			Settings.get().put(PREF_SELECTED, (String)selected);
+			updateCombo((String)selected);
+			return;
+		}
+
+		// Ask for the filters and a name to save them as, after the combo closes
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				String previous = Settings.get().get(PREF_SELECTED, NONE_TEXT);
+				FilterChain current = FilterChain.getPresets().get(previous);
+				String chainText = (String)JOptionPane.showInputDialog(easy,
+					CUSTOM_PROMPT_TEXT, FILTERS_TEXT, JOptionPane.PLAIN_MESSAGE, null, null,
+					current == null ? "" : current.toString());
+				try
+				{
+					FilterChain chain = chainText == null ? null : FilterChain.parse(chainText);
+					String name = chain == null || chain.isEmpty() ? null :
+						JOptionPane.showInputDialog(easy, NAME_PROMPT_TEXT, chain.toString());
+					if(name != null && name.trim().length() > 0 &&
+						!name.trim().equals(NONE_TEXT) && !name.trim().equals(CUSTOM_TEXT))
+					{
+						FilterChain.savePreset(name.trim(), chain);
+						previous = name.trim();
+						Settings.get().put(PREF_SELECTED, previous);
+					}
+				}
+				catch(IllegalArgumentException e)
+				{
+					JOptionPane.showMessageDialog(easy, e.getMessage(),
+						"Error", JOptionPane.ERROR_MESSAGE);
+				}
+				updateCombo(previous);
+			}
+		});
+	}
+
+	/**
+	 * Fills the combo box with the current presets.
+	 * @param selected Name of preset to select
+	 */
+	private void updateCombo(String selected)
+	{
+		ignoreComboEvents = true;
+		ComboBoxSeparatorModel model = (ComboBoxSeparatorModel)filters.getModel();
+		model.removeAllElements();
+		model.addElement(NONE_TEXT);
+		model.addSeparator();
+		Map<String, FilterChain> presets = FilterChain.getPresets();
+		for(String name : presets.keySet())
+		{
+			model.addElement(name);
+		}
+		model.addSeparator();
+		model.addElement(CUSTOM_TEXT);
+
+		filters.setSelectedItem(presets.containsKey(selected) ? selected : NONE_TEXT);
+		FilterChain chain = presets.get(filters.getSelectedItem());
+		filters.setToolTipText(chain == null ? null : chain.toString());
+		ignoreComboEvents = false;
+	}
+}
@@ -0,0 +1,240 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds files in folder trees. Folders are listed in parallel on a background
+ * pool, and files are passed on in small groups as they're found, so
+ * conversion can start long before a large tree has been completely walked.
+ * Hidden files and folders are skipped.
+ */
+public class FolderWalker
+{
+	/** Maximum number of files passed on in one go */
+	private final static int GROUP_SIZE = 256;
+
+	/** Shared threads for listing folders */
+	private static ThreadPoolExecutor walkThreads;
+
+	/**
+	 * Receives files as they are found. Calls may come from several threads at
+	 * once.
+	 */
+	public interface Listener
+	{
+		/**
+		 * @param files Files found
+		 */
+		public void found(File[] files);
+
+		/**
+		 * Called once when all folders have been walked.
+		 */
+		public void finished();
+	}
+
+	private FileFilter filter;
+	private Listener listener;
+
+	/** Number of folders waiting to be listed or being listed */
+	private AtomicInteger pending = new AtomicInteger();
+	/** Canonical paths of folders already walked, in case of link loops */
+	private Set<String> visited =
+		Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * @param filter Filter for files (not applied to folders)
+	 * @param listener Listener that receives files
+	 */
+	public FolderWalker(FileFilter filter, Listener listener)
+	{
+		this.filter = filter;
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts walking folders. Returns straight away.
+	 * @param folders Folders
+	 */
+	public void walk(File... folders)
+	{
+		// Count them all first, so finished isn't called early
+		pending.addAndGet(folders.length);
+		if(folders.length == 0)
+		{
+			listener.finished();
+			return;
+		}
+		for(File folder : folders)
+		{
+			submit(folder);
+		}
+	}
+
+	private void submit(final File folder)
+	{
+		getWalkThreads().execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					list(folder);
+				}
+				catch(Throwable t)
+				{
+					t.printStackTrace();
+				}
+				finally
+				{
+					if(pending.decrementAndGet() == 0)
+					{
+						listener.finished();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Lists a single folder, passing on its files and queueing its subfolders.
+	 * @param folder Folder
+	 * @throws IOException If the path can't be made canonical
+	 */
+	private void list(File folder) throws IOException
+	{
+		if(!visited.add(folder.getCanonicalPath()))
+		{
+			return;
+		}
+		File[] children = folder.listFiles();
+		if(children == null)
+		{
+			return;
+		}
+		Arrays.sort(children);
+
+		List<File> group = new ArrayList<File>();
+		for(File child : children)
+		{
+			if(child.getName().startsWith("."))
+			{
+				continue;
+			}
+			if(child.isDirectory())
+			{
+				pending.incrementAndGet();
+				submit(child);
+			}
+			else if(filter.accept(child))
+			{
+				group.add(child);
+				if(group.size() == GROUP_SIZE)
+				{
+					listener.found(group.toArray(new File[group.size()]));
+					group.clear();
+				}
+			}
+		}
+		if(!group.isEmpty())
+		{
+			listener.found(group.toArray(new File[group.size()]));
+		}
+	}
+
+	/**
+	 * @return Thread pool for walking
+	 */
+	private static synchronized ThreadPoolExecutor getWalkThreads()
+	{
+		if(walkThreads == null)
+		{
+			// Listing is mostly waiting for the disk, so use more threads than CPUs
+			int threads = Math.min(8, Runtime.getRuntime().availableProcessors() * 2);
+			walkThreads = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+			{
+				private int index;
+
+				@Override
+				public synchronized Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "Folder walk " + (++index));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			walkThreads.allowCoreThreadTimeOut(true);
+		}
+		return walkThreads;
+	}
+
+	/**
+	 * @param extensions Extensions (lower-case, without dot)
+	 * @return Filter that accepts files with any of those extensions
+	 */
+	public static FileFilter getExtensionFilter(Collection<String> extensions)
+	{
+		final Set<String> set = new HashSet<String>(extensions);
+		return new FileFilter()
+		{
+			@Override
+			public boolean accept(File file)
+			{
+				String name = file.getName();
+				int dot = name.lastIndexOf('.');
+				return dot != -1 && set.contains(name.substring(dot + 1).toLowerCase());
+			}
+		};
+	}
+
+	/**
+	 * @param code GPSBabel format code
+	 * @return Filter that accepts files whose content looks like that format,
+	 *   or null if the format can't be recognised from content
+	 */
+	public static FileFilter getFormatFilter(final String code)
+	{
+		if(!code.equals("gpx") && !code.equals("kml") && !code.equals("nmea"))
+		{
+			return null;
+		}
+		return new FileFilter()
+		{
+			@Override
+			public boolean accept(File file)
+			{
+				try
+				{
+					return code.equals(FileSniffer.sniff(file));
+				}
+				catch(IOException e)
+				{
+					return false;
+				}
+			}
+		};
+	}
+}
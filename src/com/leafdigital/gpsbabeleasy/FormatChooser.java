@@ -19,8 +19,8 @@ Copyright 2012 Samuel Marshall.
 package com.leafdigital.gpsbabeleasy;
 
 import java.awt.*;
+import java.awt.event.*;
 import java.util.*;
-import java.util.prefs.*;
 import java.util.regex.*;
 
 import javax.swing.*;
@@ -32,6 +32,21 @@ public class FormatChooser extends JPanel
 {
 	private final static String IN_TEXT = "Input format";
 	private final static String OUT_TEXT = "Output format";
+	private final static String ALSO_TEXT = "Also\u2026";
+	private final static String ALSO_COUNT_TEXT = "Also +";
+	private final static String ALSO_TITLE_TEXT = "Other output formats";
+	private final static String ALSO_PROMPT_TEXT =
+		"Each file is also converted to the formats selected here:";
+
+	private final static String MERGE_TEXT = "Merge";
+	private final static String MERGE_TIP_TEXT =
+		"Merge the files from each drop into one output file";
+
+	/** Preferences key for extra output format codes (comma-separated) */
+	private final static String PREF_EXTRA_OUT = "extraFormats.out";
+
+	/** Preferences key for merging dropped files ("true" or "false") */
+	private final static String PREF_MERGE = "merge.drops";
 
 	/** Extra space required either side of combo boxes by theme */
 	private final static int UI_COMBO_EDGE = 5;
@@ -40,6 +55,8 @@ public class FormatChooser extends JPanel
 
 	private GpsBabelEasy easy;
 	private JComboBox inFormat, outFormat;
+	private JButton also;
+	private JCheckBox merge;
 
 	private TreeSet<Format> formatSet;
 
@@ -66,7 +83,41 @@ public class FormatChooser extends JPanel
 		inLabel.setBorder(BorderFactory.createEmptyBorder(0, UI_COMBO_EDGE, 0, 0));
 		outLabel.setBorder(BorderFactory.createEmptyBorder(0, UI_COMBO_EDGE, 0, 0));
 		left.add(inLabel, BorderLayout.NORTH);
-		right.add(outLabel, BorderLayout.NORTH);
+		JPanel outLabels = new JPanel(new BorderLayout());
+		outLabels.add(outLabel, BorderLayout.CENTER);
+		right.add(outLabels, BorderLayout.NORTH);
+
+		// Button to pick other output formats, written at the same time
+		also = new JButton(ALSO_TEXT);
+		also.putClientProperty("JComponent.sizeVariant", "mini");
+		also.putClientProperty("JButton.buttonType", "roundRect");
+		also.setEnabled(false);
+		also.addActionListener(new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				chooseExtraFormats();
+			}
+		});
+
+		// Option to merge all the files from a drop
+		merge = new JCheckBox(MERGE_TEXT,
+			Boolean.parseBoolean(Settings.get().get(PREF_MERGE, "false")));
+		merge.putClientProperty("JComponent.sizeVariant", "mini");
+		merge.setToolTipText(MERGE_TIP_TEXT);
+		merge.addActionListener(new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				Settings.get().put(PREF_MERGE, merge.isSelected() + "");
+			}
+		});
+		JPanel buttons = new JPanel(new BorderLayout());
+		buttons.add(merge, BorderLayout.WEST);
+		buttons.add(also, BorderLayout.EAST);
+		outLabels.add(buttons, BorderLayout.EAST);
 
 		DefaultComboBoxModel inModel = new ComboBoxSeparatorModel(),
 			outModel = new ComboBoxSeparatorModel();
@@ -81,21 +132,96 @@ public class FormatChooser extends JPanel
 		left.add(inFormat,BorderLayout.SOUTH);
 		right.add(outFormat,BorderLayout.SOUTH);
 
-		// Set temporary data
+		// Set temporary data until formats are available
 		inModel.addElement("\u00a0");
 		outModel.addElement("\u00a0");
 		inFormat.setEnabled(false);
 		outFormat.setEnabled(false);
+	}
 
-		// Acquire actual data in separate thread
-		(new Thread(new Runnable()
+	/**
+	 * Shows a dialog for choosing other output formats.
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private void chooseExtraFormats()
+	{
+		Format[] all = formatSet.toArray(new Format[formatSet.size()]);
+		JList list = new JList(all);
+		list.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+		list.setVisibleRowCount(15);
+		Set<Format> extras = new HashSet<Format>(getExtraFormats());
+		for(int i=0; i<all.length; i++)
 		{
-			@Override
-			public void run()
+			if(extras.contains(all[i]))
+			{
+				list.addSelectionInterval(i, i);
+			}
+		}
+		list.ensureIndexIsVisible(Math.max(list.getMinSelectionIndex(), 0));
+
+		if(JOptionPane.showConfirmDialog(easy,
+			new Object[] { ALSO_PROMPT_TEXT, new JScrollPane(list) }, ALSO_TITLE_TEXT,
+			JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION)
+		{
+			return;
+		}
+
+		StringBuilder codes = new StringBuilder();
+		for(int index : list.getSelectedIndices())
+		{
+			if(codes.length() > 0)
+			{
+				codes.append(',');
+			}
+			codes.append(all[index].getCode());
+		}
+		Settings.get().put(PREF_EXTRA_OUT, codes.length() == 0 ? null : codes.toString());
+		updateAlso();
+	}
+
+	/**
+	 * @return Other output formats chosen in preferences, which may include
+	 *   the main output format
+	 */
+	private java.util.List<Format> getExtraFormats()
+	{
+		java.util.List<Format> extras = new ArrayList<Format>();
+		String codes = Settings.get().get(PREF_EXTRA_OUT, null);
+		if(codes != null && formatSet != null)
+		{
+			for(String code : codes.split(","))
 			{
-				initFormats();
+				Format format = findFormat(formatSet, code.trim());
+				if(format != null)
+				{
+					extras.add(format);
+				}
 			}
-		})).start();
+		}
+		return extras;
+	}
+
+	/**
+	 * Updates the button text to show how many other formats are chosen.
+	 */
+	private void updateAlso()
+	{
+		java.util.List<Format> extras = getExtraFormats();
+		also.setText(extras.isEmpty() ? ALSO_TEXT : ALSO_COUNT_TEXT + extras.size());
+		also.setToolTipText(extras.isEmpty() ? null : extras.toString());
+		also.setEnabled(true);
+	}
+
+	/**
+	 * Sets the list of formats and enables the combo boxes. Must be called on
+	 * the Swing thread.
+	 * @param formats All formats, sorted by display name
+	 */
+	public void setFormats(TreeSet<Format> formats)
+	{
+		formatSet = formats;
+		updateCombos();
+		updateAlso();
 	}
 
 	/**
@@ -105,7 +231,7 @@ public class FormatChooser extends JPanel
 	{
 		private String code, display;
 
-		private Format(String code, String display)
+		Format(String code, String display)
 		{
 			this.code = code;
 			this.display = display;
@@ -150,12 +276,32 @@ public class FormatChooser extends JPanel
 		return (Format)outFormat.getSelectedItem();
 	}
 
+	/**
+	 * @return Output format followed by any other output formats chosen, with
+	 *   no format included twice
+	 */
+	public Format[] getOutFormats()
+	{
+		Set<Format> outs = new LinkedHashSet<Format>();
+		outs.add(getOutFormat());
+		outs.addAll(getExtraFormats());
+		return outs.toArray(new Format[outs.size()]);
+	}
+
+	/**
+	 * @return True if dropped files should be merged into one output
+	 */
+	public boolean isMerge()
+	{
+		return merge.isSelected();
+	}
+
 	/**
 	 * Called when a conversion is actually done. Updates formats in preferences
 	 */
 	public void remember()
 	{
-		Preferences prefs = Preferences.userNodeForPackage(this.getClass());
+		Settings settings = Settings.get();
 
 		JComboBox[] boxes = { inFormat, outFormat };
 		for(JComboBox box : boxes)
@@ -166,7 +312,7 @@ public class FormatChooser extends JPanel
 			int afterIndex = 1;
 		  for(int i=0; i < MRU_LENGTH; i++)
 		  {
-		  	String recent = prefs.get(getPrefKey(box, i), null);
+		  	String recent = settings.get(getPrefKey(box, i), null);
 
 		  	// Stop as soon as there's a missing one
 		  	if(recent == null)
@@ -196,22 +342,14 @@ public class FormatChooser extends JPanel
 		  	String key = getPrefKey(box, i);
 		  	if(after[i] == null)
 		  	{
-		  		prefs.remove(key);
+		  		settings.remove(key);
 		  	}
 		  	else
 		  	{
-		  		prefs.put(key, after[i]);
+		  		settings.put(key, after[i]);
 		  	}
 		  }
 		}
-		try
-		{
-			prefs.flush();
-		}
-		catch(BackingStoreException e)
-		{
-			easy.fatalError(e);
-		}
 
 		updateCombos();
 	}
@@ -219,7 +357,7 @@ public class FormatChooser extends JPanel
 	private void updateCombos()
 	{
 		// Get most recently used formats
-		Preferences prefs = Preferences.userNodeForPackage(this.getClass());
+		Settings settings = Settings.get();
 
 		// Use list to update combo boxes
 		JComboBox[] boxes = { inFormat, outFormat };
@@ -231,7 +369,7 @@ public class FormatChooser extends JPanel
 			// Add recently used formats
 		  for(int i=0; i < MRU_LENGTH; i++)
 		  {
-				String recent = prefs.get(getPrefKey(box, i), i == 0 ? "gpx" : null);
+				String recent = settings.get(getPrefKey(box, i), i == 0 ? "gpx" : null);
 		  	if(recent != null)
 		  	{
 		  		// Find specified format
@@ -270,81 +408,94 @@ public class FormatChooser extends JPanel
 	}
 
 	/**
-	 * Separate thread that gets the list of formats.
+	 * Runs GPSBabel to get the list of supported formats.
+	 * @param converter Converter used to run GPSBabel
+	 * @return All formats, sorted by display name
+	 * @throws Exception If GPSBabel fails
+	 */
+	static TreeSet<Format> readFormats(Converter converter) throws Exception
+	{
+		// Run GPSBabel and parse result to get list of formats
+		Converter.RunResult result = converter.runGpsBabel("-h");
+		if(result.getResult() != 0)
+		{
+			throw new Exception(
+				"Unexpected return value for gpsbabel -h: " + result.getResult());
+		}
+		return parseFormats(result.getStdout());
+	}
+
+	/**
+	 * Parses the list of formats from GPSBabel help text.
+	 * @param out Output of gpsbabel -h
+	 * @return All formats, sorted by display name
 	 */
-	private void initFormats()
+	static TreeSet<Format> parseFormats(String out)
 	{
-		try
+		int pos = 0;
+		boolean inFileTypes = false;
+		Pattern FORMAT_LINE = Pattern.compile("^(\\s+)([^\\s]+)\\s+(.*)$");
+		TreeSet<Format> formatSet = new TreeSet<Format>();
+		while(pos < out.length())
 		{
-			// Run GPSBabel and parse result to get list of formats
-			GpsBabelEasy.RunResult result = easy.runGpsBabel("-h");
-			if(result.getResult() != 0)
+			// Get next line
+			int lf = out.indexOf('\n', pos);
+			if(lf == -1)
 			{
-				throw new Exception(
-					"Unexpected return value for gpsbabel -h: " + result.getResult());
+				lf = out.length();
 			}
-			String out = result.getStdout();
-			int pos = 0;
-			boolean inFileTypes = false;
-			Pattern FORMAT_LINE = Pattern.compile("^(\\s+)([^\\s]+)\\s+(.*)$");
-			formatSet = new TreeSet<Format>();
-			while(pos < out.length())
+			String line = out.substring(pos, lf);
+			// Trim whitespace at end of line only (this will mean it'll work in
+			// Windows if there's a CR)
+			line = line.replaceFirst("\\s+$", "");
+			pos = lf + 1;
+
+			// Process line
+			if(!inFileTypes)
 			{
-				// Get next line
-				int lf = out.indexOf('\n', pos);
-				if(lf == -1)
+				// Look for file types header: any line containing words '-i' and '-o'
+				// terminated by a colon
+				if(line.matches(".*-i.*-o.*:$"))
 				{
-					lf = out.length();
+					inFileTypes = true;
 				}
-				String line = out.substring(pos, lf);
-				// Trim whitespace at end of line only (this will mean it'll work in
-				// Windows if there's a CR)
-				line = line.replaceFirst("\\s+$", "");
-				pos = lf + 1;
-
-				// Process line
-				if(!inFileTypes)
+			}
+			else
+			{
+				// Exit loop on blank line
+				if(line.trim().equals(""))
 				{
-					// Look for file types header: any line containing words '-i' and '-o'
-					// terminated by a colon
-					if(line.matches(".*-i.*-o.*:$"))
-					{
-						inFileTypes = true;
-					}
+					break;
 				}
-				else
-				{
-					// Exit loop on blank line
-					if(line.trim().equals(""))
-					{
-						break;
-					}
 
-					// Match line
-					Matcher m = FORMAT_LINE.matcher(line);
-					if(m.matches())
+				// Match line
+				Matcher m = FORMAT_LINE.matcher(line);
+				if(m.matches())
+				{
+					if (m.group(1).equals("\t"))
 					{
-						if (m.group(1).equals("\t"))
-						{
-							formatSet.add(new Format(m.group(2), m.group(3)));
-						}
+						formatSet.add(new Format(m.group(2), m.group(3)));
 					}
 				}
 			}
-
-			SwingUtilities.invokeLater(new Runnable()
-			{
-				@Override
-				public void run()
-				{
-					updateCombos();
-				}
-			});
 		}
-		catch(Throwable t)
+		return formatSet;
+	}
+
+	/**
+	 * @param formats Formats to search
+	 * @param code Format code
+	 * @return Format with that code, or null if none
+	 */
+	static Format findFormat(Collection<Format> formats, String code)
+	{
+		for(Format format : formats)
 		{
-			easy.fatalError(t);
+			if(format.getCode().equals(code))
+			{
+				return format;
+			}
 		}
+		return null;
 	}
-
 }
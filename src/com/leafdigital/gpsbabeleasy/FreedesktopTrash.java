@@ -0,0 +1,182 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Moves files to the trash as defined by the freedesktop.org Trash
+ * specification, used by Linux desktops. Files always go to the trash in the
+ * home folder (copying them if they're on a different disk), so files from
+ * removable devices don't end up in a hidden trash folder on the device.
+ */
+public class FreedesktopTrash
+{
+	private final static String HEX = "0123456789ABCDEF";
+
+	/**
+	 * @return Trash folder in the home folder
+	 */
+	static File getTrashFolder()
+	{
+		String data = System.getenv("XDG_DATA_HOME");
+		File dataFolder = data != null && data.length() > 0 ? new File(data)
+			: new File(System.getProperty("user.home"), ".local/share");
+		return new File(dataFolder, "Trash");
+	}
+
+	/**
+	 * Moves files to the trash.
+	 * @param files Files to move
+	 * @return Array of the same length containing the error for each file,
+	 *   or null where the file was moved to the trash
+	 */
+	static IOException[] trash(File[] files)
+	{
+		IOException[] errors = new IOException[files.length];
+		File trash = getTrashFolder();
+		File filesFolder = new File(trash, "files"), infoFolder = new File(trash, "info");
+		if(!(filesFolder.isDirectory() || filesFolder.mkdirs()) ||
+			!(infoFolder.isDirectory() || infoFolder.mkdirs()))
+		{
+			for(int i=0; i<errors.length; i++)
+			{
+				errors[i] = new IOException("Unable to create trash folder " + trash);
+			}
+			return errors;
+		}
+
+		String deletionDate = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(
+			new Date());
+		for(int i=0; i<files.length; i++)
+		{
+			try
+			{
+				trash(files[i], filesFolder, infoFolder, deletionDate);
+			}
+			catch(IOException e)
+			{
+				errors[i] = e;
+			}
+		}
+		return errors;
+	}
+
+	/**
+	 * Moves a single file to the trash.
+	 * @param file File to move
+	 * @param filesFolder Trash 'files' folder
+	 * @param infoFolder Trash 'info' folder
+	 * @param deletionDate Deletion date in the format the specification uses
+	 * @throws IOException Any error
+	 */
+	private static void trash(File file, File filesFolder, File infoFolder,
+		String deletionDate) throws IOException
+	{
+		File absolute = file.getAbsoluteFile();
+		if(!absolute.exists())
+		{
+			throw new FileNotFoundException("File not found: " + absolute);
+		}
+
+		// Claim a name by creating its info file, which fails if another
+		// process got there first
+		File info, target;
+		String name = absolute.getName();
+		for(int i=1;; i++)
+		{
+			if(i > 1)
+			{
+				name = absolute.getName();
+				if(name.contains("."))
+				{
+					name = name.replaceFirst("(\\.[^.]*)$", " (" + i + ")$1");
+				}
+				else
+				{
+					name += " (" + i + ")";
+				}
+			}
+			info = new File(infoFolder, name + ".trashinfo");
+			target = new File(filesFolder, name);
+			if(!target.exists() && info.createNewFile())
+			{
+				break;
+			}
+		}
+
+		boolean ok = false;
+		try
+		{
+			Writer writer = new OutputStreamWriter(new FileOutputStream(info), "UTF-8");
+			try
+			{
+				writer.write("[Trash Info]\n");
+				writer.write("Path=" + encodePath(absolute.getPath()) + "\n");
+				writer.write("DeletionDate=" + deletionDate + "\n");
+			}
+			finally
+			{
+				writer.close();
+			}
+
+			if(!absolute.renameTo(target))
+			{
+				// Rename can fail across filesystems, so try a copy
+				FileMover.move(absolute, target);
+			}
+			ok = true;
+		}
+		finally
+		{
+			if(!ok)
+			{
+				info.delete();
+			}
+		}
+	}
+
+	/**
+	 * Encodes a path as the specification requires, escaping any byte that
+	 * isn't allowed unescaped in a URL path.
+	 * @param path Absolute path
+	 * @return Encoded path
+	 * @throws UnsupportedEncodingException Never happens
+	 */
+	static String encodePath(String path) throws UnsupportedEncodingException
+	{
+		StringBuilder out = new StringBuilder();
+		for(byte b : path.getBytes("UTF-8"))
+		{
+			int c = b & 0xff;
+			if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+				(c >= '0' && c <= '9') || "/-_.~".indexOf(c) != -1)
+			{
+				out.append((char)c);
+			}
+			else
+			{
+				out.append('%').append(HEX.charAt(c >> 4)).append(HEX.charAt(c & 15));
+			}
+		}
+		return out.toString();
+	}
+}
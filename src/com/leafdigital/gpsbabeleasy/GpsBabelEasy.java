@@ -22,20 +22,19 @@ import java.awt.BorderLayout;
 import java.awt.event.*;
 import java.io.*;
 import java.util.*;
+import java.util.prefs.Preferences;
 
 import javax.swing.*;
 
 import com.apple.eawt.*;
 import com.apple.eawt.AppEvent.AboutEvent;
 
-import com.leafdigital.gpsbabeleasy.AfterOptions.InFileAction;
-import com.leafdigital.gpsbabeleasy.FormatChooser.Format;
-import com.leafdigital.gpsbabeleasy.ProgressDisplay.ProgressTableModel;
 
 /**
  * Main application window.
  */
 public class GpsBabelEasy extends JFrame
+	implements Converter.Owner, HotFolder.Target
 {
 	/**
 	 * Application title.
@@ -49,16 +48,29 @@ public class GpsBabelEasy extends JFrame
 	private final static int UI_SPACING_MINI_LABEL_ANTIPAD = 2;
 	private final static int UI_SPACING_COMBO_ANTIPAD = 4;
 
+	/**
+	 * Preferences key for extensions of files converted from dropped folders
+	 * (comma-separated). If not set, files are chosen by content for formats
+	 * that can be recognised, otherwise by the input format code.
+	 */
+	private final static String PREF_DROP_EXTENSIONS = "drop.extensions";
+
 	private int lockCount;
 	private Object closeSynch = new Object();
 
-	private String gpsBabelPath;
+	private Converter converter;
 
 	private ProgressDisplay progress;
 	private FormatChooser chooser;
+	private FilterOptions filterOptions;
 	private AfterOptions options;
 
 	private String version, gpsBabelVersion;
+	private JLabel copyright;
+
+	private HotFolder hotFolder;
+
+	private ConversionJournal journal;
 
 	/**
 	 * @return Version
@@ -77,7 +89,16 @@ public class GpsBabelEasy extends JFrame
 	}
 
 	/**
-	 * Main method just opens window.
+	 * @return Converter that runs GPSBabel
+	 */
+	public Converter getConverter()
+	{
+		return converter;
+	}
+
+	/**
+	 * Main method just opens window. (For conversion without a window, use
+	 * {@link CommandLine} instead.)
 	 * @param args Parameters are ignored
 	 */
 	public static void main(String[] args)
@@ -110,7 +131,8 @@ public class GpsBabelEasy extends JFrame
 		super(TITLE_TEXT);
 
 		// Relative path should work when running from IDE or app bundle
-		gpsBabelPath = "./gpsbabel";
+		converter = new Converter("./gpsbabel", this);
+		converter.getStats().register();
 
 		setLayout(new BorderLayout());
 		JPanel main = new JPanel(new BorderLayout(UI_SPACING, UI_SPACING - UI_SPACING_COMBO_ANTIPAD));
@@ -118,7 +140,11 @@ public class GpsBabelEasy extends JFrame
 
 		// Format options
 		chooser = new FormatChooser(this);
-		main.add(chooser, BorderLayout.NORTH);
+		filterOptions = new FilterOptions(this);
+		JPanel upper = new JPanel(new BorderLayout());
+		upper.add(chooser, BorderLayout.NORTH);
+		upper.add(filterOptions, BorderLayout.SOUTH);
+		main.add(upper, BorderLayout.NORTH);
 
 		// Drop area
 		JPanel lower = new JPanel(new BorderLayout(UI_SPACING, 0));
@@ -127,22 +153,6 @@ public class GpsBabelEasy extends JFrame
 		lower.add(new BorderWrapper(drop, 0, UI_SPACING, 0, UI_SPACING),
 			BorderLayout.NORTH);
 
-		// Get GPSBabel details
-		gpsBabelVersion = "GPSBabel";
-		String gpsBabelDate = "";
-		try
-		{
-			RunResult result = runGpsBabel("-V");
-			gpsBabelVersion = result.getStdout().trim().replace(" Version ", " ").trim();
-			Calendar c = Calendar.getInstance();
-			c.setTimeInMillis(new File(gpsBabelPath).lastModified());
-			gpsBabelDate = c.get(Calendar.YEAR) + "";
-		}
-		catch(IOException e)
-		{
-			// Ignore error this time
-		}
-
 		JPanel lower2 = new JPanel(new BorderLayout(UI_SPACING, UI_SPACING - UI_SPACING_MINI_LABEL_ANTIPAD));
 		lower.add(lower2, BorderLayout.CENTER);
 
@@ -171,12 +181,46 @@ public class GpsBabelEasy extends JFrame
 				e.printStackTrace();
 			}
 		}
-		final JLabel copyright = new JLabel(
-			gpsBabelVersion + " \u00a9 " + gpsBabelDate + " Robert Lipe, gpsbabel.org. " +
-			"Easy converter " + version + " \u00a9 2012 Samuel Marshall / leafdigital.");
+		copyright = new JLabel();
 		copyright.putClientProperty("JComponent.sizeVariant", "mini");
 		lower2.add(new BorderWrapper(copyright, 0, UI_SPACING, UI_SPACING, UI_SPACING), BorderLayout.SOUTH);
 
+		// Get GPSBabel details; if the executable has changed since last time,
+		// this runs it in a separate thread
+		gpsBabelVersion = "GPSBabel";
+		updateCopyright();
+		GpsBabelInfo info = GpsBabelInfo.getCached(converter);
+		if(info != null)
+		{
+			setGpsBabelInfo(info);
+		}
+		else
+		{
+			new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						final GpsBabelInfo info = GpsBabelInfo.read(converter);
+						SwingUtilities.invokeLater(new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								setGpsBabelInfo(info);
+							}
+						});
+					}
+					catch(Throwable t)
+					{
+						fatalError(t);
+					}
+				}
+			}, "GPSBabel info").start();
+		}
+
 		// Close handling
 		setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
 		addWindowListener(new WindowAdapter()
@@ -208,6 +252,154 @@ public class GpsBabelEasy extends JFrame
 		setVisible(true);
 	}
 
+	/**
+	 * Called on the Swing thread once the GPSBabel version and formats are
+	 * available.
+	 * @param info GPSBabel information
+	 */
+	private void setGpsBabelInfo(GpsBabelInfo info)
+	{
+		gpsBabelVersion = info.getVersion();
+		converter.setCache(ConversionCache.create(gpsBabelVersion));
+		chooser.setFormats(info.getFormats());
+		updateCopyright();
+
+		// Start watching hot folder, if one is set up in preferences
+		if(hotFolder == null)
+		{
+			try
+			{
+				hotFolder = HotFolder.fromPreferences(info.getFormats(), this);
+				if(hotFolder != null)
+				{
+					hotFolder.start();
+				}
+			}
+			catch(IllegalArgumentException e)
+			{
+				System.err.println("Hot folder not started: " + e.getMessage());
+			}
+		}
+
+		// Carry on with conversions that didn't finish last time
+		if(journal == null)
+		{
+			try
+			{
+				journal = ConversionJournal.open();
+				resume(info.getFormats());
+			}
+			catch(IOException e)
+			{
+				System.err.println("Unable to open conversion journal: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Queues conversions from the journal that hadn't finished when the
+	 * application last stopped. Conversions whose input file or settings are
+	 * no longer available are dropped.
+	 * @param formats Available formats
+	 */
+	private void resume(Collection<FormatChooser.Format> formats)
+	{
+		// Group conversions with the same settings
+		Map<String, List<ConversionJournal.Entry>> groups =
+			new LinkedHashMap<String, List<ConversionJournal.Entry>>();
+		for(ConversionJournal.Entry entry : journal.getPending())
+		{
+			List<ConversionJournal.Entry> group = groups.get(entry.getSettings());
+			if(group == null)
+			{
+				group = new ArrayList<ConversionJournal.Entry>();
+				groups.put(entry.getSettings(), group);
+			}
+			group.add(entry);
+		}
+
+		for(List<ConversionJournal.Entry> group : groups.values())
+		{
+			ConversionJournal.Entry first = group.get(0);
+			FormatChooser.Format in = FormatChooser.findFormat(formats, first.getInCode());
+			AfterOptions.InFileAction inAction = null;
+			try
+			{
+				inAction = AfterOptions.getInFileAction(
+					first.getActionType(), first.getMoveFolder());
+			}
+			catch(IllegalArgumentException e)
+			{
+				// Leave as null so this group is dropped
+			}
+
+			// Find the outputs still needed for each file
+			Map<File, Set<FormatChooser.Format>> fileOuts =
+				new LinkedHashMap<File, Set<FormatChooser.Format>>();
+			if(in != null && inAction != null)
+			{
+				for(ConversionJournal.Entry entry : group)
+				{
+					FormatChooser.Format out = FormatChooser.findFormat(
+						formats, entry.getOutCode());
+					if(out != null && entry.getFile().exists())
+					{
+						Set<FormatChooser.Format> outs = fileOuts.get(entry.getFile());
+						if(outs == null)
+						{
+							outs = new LinkedHashSet<FormatChooser.Format>();
+							fileOuts.put(entry.getFile(), outs);
+						}
+						outs.add(out);
+					}
+				}
+			}
+
+			// Files that need the same outputs are queued together
+			Map<Set<FormatChooser.Format>, List<File>> sameOuts =
+				new LinkedHashMap<Set<FormatChooser.Format>, List<File>>();
+			for(Map.Entry<File, Set<FormatChooser.Format>> fileOut : fileOuts.entrySet())
+			{
+				List<File> files = sameOuts.get(fileOut.getValue());
+				if(files == null)
+				{
+					files = new ArrayList<File>();
+					sameOuts.put(fileOut.getValue(), files);
+				}
+				files.add(fileOut.getKey());
+			}
+			for(Map.Entry<Set<FormatChooser.Format>, List<File>> same : sameOuts.entrySet())
+			{
+				List<File> files = same.getValue();
+				Set<FormatChooser.Format> outs = same.getKey();
+				convert(files.toArray(new File[files.size()]), in,
+					outs.toArray(new FormatChooser.Format[outs.size()]), first.getFilters(),
+					inAction, first.getOutFolder(), null, true);
+			}
+
+			// These are now either queued again with new entries, or dropped
+			journal.remove(group);
+		}
+	}
+
+	/**
+	 * Updates the copyright text with the current GPSBabel version.
+	 */
+	private void updateCopyright()
+	{
+		String gpsBabelDate = "";
+		long modified = new File(converter.getGpsBabelPath()).lastModified();
+		if(modified != 0)
+		{
+			Calendar c = Calendar.getInstance();
+			c.setTimeInMillis(modified);
+			gpsBabelDate = c.get(Calendar.YEAR) + "";
+		}
+		copyright.setText(
+			gpsBabelVersion + " \u00a9 " + gpsBabelDate + " Robert Lipe, gpsbabel.org. " +
+			"Easy converter " + version + " \u00a9 2012 Samuel Marshall / leafdigital.");
+	}
+
 	/**
 	 * @return True if app can currently be closed
 	 */
@@ -222,6 +414,7 @@ public class GpsBabelEasy extends JFrame
 	/**
 	 * Locks close, preventing the user from closing the app.
 	 */
+	@Override
 	public void lockClose()
 	{
 		synchronized(closeSynch)
@@ -245,6 +438,7 @@ public class GpsBabelEasy extends JFrame
 	 * Stops locking close.
 	 * @throws IllegalStateException If close is not locked
 	 */
+	@Override
 	public void unlockClose() throws IllegalStateException
 	{
 		synchronized(closeSynch)
@@ -269,350 +463,272 @@ public class GpsBabelEasy extends JFrame
 	}
 
 	/**
-	 * Result of running the program.
+	 * Called if there is a fatal error in the system.
+	 * @param t Error trace
 	 */
-	public static class RunResult
+	public void fatalError(final Throwable t)
 	{
-		private int result;
-		private String stdout, stderr;
-
-		private RunResult(int result, String stdout, String stderr)
-		{
-			this.result = result;
-			this.stdout = stdout;
-			this.stderr = stderr;
-		}
-
-		/**
-		 * @return Program result integer
-		 */
-		public int getResult()
-		{
-			return result;
-		}
-
-		/**
-		 * @return Standard output (treated as ISO 8859-1)
-		 */
-		public String getStdout()
+		// Make sure we're on the thread
+		if(!SwingUtilities.isEventDispatchThread())
 		{
-			return stdout;
+			SwingUtilities.invokeLater(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					fatalError(t);
+				}
+			});
+			return;
 		}
 
-		/**
-		 * @return Standard err (treated as ISO 8859-1)
-		 */
-		public String getStderr()
-		{
-			return stderr;
-		}
+		JOptionPane.showMessageDialog(this,
+			"An error occurred. The program will now exit. (Details in Console.)",
+			"GPSBabel easy convertor error", JOptionPane.ERROR_MESSAGE);
+		System.err.println("GPSBabel easy converter fatal error:");
+		t.printStackTrace();
+		System.exit(0);
 	}
 
 	/**
-	 * Runs the GPSBabel command-line tool and waits for it to complete.
-	 * @param parameters Parameters
-	 * @return Result of run
-	 * @throws IOException If there's any problem
+	 * Called to initiate convert.
+	 * @param files Files to convert
 	 */
-	public RunResult runGpsBabel(String... parameters) throws IOException
+	public void convert(File[] files)
 	{
-		// Prepare full commandline
-		String[] commandLine = new String[parameters.length + 1];
-		commandLine[0] = gpsBabelPath;
-		System.arraycopy(parameters, 0, commandLine, 1, parameters.length);
-		Process process;
-		try
+		// Get settings
+		FormatChooser.Format inFormat = chooser.getInFormat();
+		FormatChooser.Format[] outFormats = chooser.getOutFormats();
+		chooser.remember();
+		FilterChain filters = filterOptions.getFilters();
+		AfterOptions.InFileAction inAction = options.getInAction();
+		File outFolder = options.getOutFolder();
+		options.remember();
+		MergeGroups mergeGroups = null;
+		if(chooser.isMerge())
 		{
-			process = Runtime.getRuntime().exec(commandLine, null);
+			try
+			{
+				mergeGroups = MergeGroups.fromPreferences(null, 0, 0);
+			}
+			catch(IllegalArgumentException e)
+			{
+				JOptionPane.showMessageDialog(this, e.getMessage(),
+					"Error", JOptionPane.ERROR_MESSAGE);
+				return;
+			}
 		}
-		catch(Exception e)
+
+		// Folders are walked in the background, adding files as they're found
+		List<File> plainFiles = new ArrayList<File>(), folders = new ArrayList<File>();
+		for(File file : files)
 		{
-			throw new IOException("Error running GPSBabel", e);
+			if(file.isDirectory())
+			{
+				folders.add(file);
+			}
+			else
+			{
+				plainFiles.add(file);
+			}
 		}
-		StreamEater stdout = new StreamEater(process.getInputStream());
-		StreamEater stderr = new StreamEater(process.getErrorStream());
-		int value;
-		try
+		if(mergeGroups != null)
 		{
-			value = process.waitFor();
+			// Everything dropped is merged, once the folders have been walked
+			if(folders.isEmpty())
+			{
+				merge(plainFiles, mergeGroups, inFormat, outFormats, filters, inAction,
+					outFolder);
+			}
+			else
+			{
+				walk(folders.toArray(new File[folders.size()]), plainFiles, mergeGroups,
+					inFormat, outFormats, filters, inAction, outFolder);
+			}
+			return;
 		}
-		catch(InterruptedException e)
+		if(!plainFiles.isEmpty())
 		{
-			throw new IOException("Error waiting for GPSBabel result", e);
+			convert(plainFiles.toArray(new File[plainFiles.size()]),
+				inFormat, outFormats, filters, inAction, outFolder, null, true);
+		}
+		if(!folders.isEmpty())
+		{
+			walk(folders.toArray(new File[folders.size()]), null, null,
+				inFormat, outFormats, filters, inAction, outFolder);
 		}
-		return new RunResult(value, stdout.getOut(), stderr.getOut());
 	}
 
 	/**
-	 * Thread that eats the content of a stream from running a process.
+	 * Merges files into one output for each group.
+	 * @param files Files to merge
+	 * @param mergeGroups Groups to split the files into
+	 * @param in Input format
+	 * @param outs Output formats
+	 * @param filters Filters to run on the data
+	 * @param inAction Action on input files after successful conversion
+	 * @param outFolder Target folder, or null for same folder as input
 	 */
-	private static class StreamEater extends Thread
+	private void merge(List<File> files, MergeGroups mergeGroups,
+		FormatChooser.Format in, FormatChooser.Format[] outs, FilterChain filters,
+		AfterOptions.InFileAction inAction, File outFolder)
 	{
-		private static final int BUFFER_SIZE = 4096;
-		private InputStream stream;
-
-		private String out;
-		private Throwable error;
-
-		private StreamEater(InputStream stream)
+		// Merges aren't journalled, as resuming would need the whole group
+		for(MergeGroups.Group group : mergeGroups.split(files.toArray(new File[files.size()])))
 		{
-			this.stream = stream;
-			start();
-		}
-
-		@Override
-		public void run()
-		{
-			ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
-			try
+			File[] groupFiles = group.getFiles();
+			ProgressDisplay.ProgressTableModel.Row[] rows =
+				new ProgressDisplay.ProgressTableModel.Row[outs.length];
+			for(int j=0; j<outs.length; j++)
 			{
-				byte[] buffer = new byte[BUFFER_SIZE];
-				while(true)
-				{
-					int read = stream.read(buffer);
-					if(read == -1)
-					{
-						break;
-					}
-					outBytes.write(buffer, 0, read);
-				}
-			}
-			catch(Throwable t)
-			{
-				setError(t);
-			}
-			finally
-			{
-				try
-				{
-					stream.close();
-				}
-				catch(Throwable t)
-				{
-					setError(t);
-				}
-
-				synchronized(this)
-				{
-					// Use ISO-8859-1 just so it can't error
-					try
-					{
-						out = new String(outBytes.toByteArray(), "ISO-8859-1");
-					}
-					catch(Throwable t)
-					{
-						setError(t);
-						out = "?";
-					}
-					notifyAll();
-				}
+				rows[j] = progress.getModel().addRow(group.getName() + "." +
+					outs[j].getCode() + " (merging " + groupFiles.length +
+					(groupFiles.length == 1 ? " file)" : " files)"));
+				rows[j].setConversionStatus(rows[j]);
 			}
+			converter.merge(in, outs, filters, inAction, outFolder, groupFiles,
+				group.getName(), rows);
 		}
+	}
 
-		private void setError(Throwable t)
+	/**
+	 * Walks folders and converts the files in them, as they are found; or if
+	 * merging, once they have all been found.
+	 * @param folders Folders
+	 * @param mergeFiles Other files to merge along with those found, or null
+	 *   if not merging
+	 * @param mergeGroups Groups to split merged files into, or null if not
+	 *   merging
+	 * @param in Input format
+	 * @param outs Output formats
+	 * @param filters Filters to run on the data
+	 * @param inAction Action on input files after successful conversion
+	 * @param outFolder Target folder, or null for same folder as input
+	 */
+	private void walk(File[] folders, final List<File> mergeFiles,
+		final MergeGroups mergeGroups, final FormatChooser.Format in,
+		final FormatChooser.Format[] outs, final FilterChain filters,
+		final AfterOptions.InFileAction inAction, final File outFolder)
+	{
+		String extensions = Preferences.userNodeForPackage(GpsBabelEasy.class).get(
+			PREF_DROP_EXTENSIONS, null);
+		FileFilter filter;
+		if(extensions != null)
 		{
-			// Only take the first error
-			if(error == null)
+			filter = FolderWalker.getExtensionFilter(HotFolder.parseExtensions(extensions));
+		}
+		else
+		{
+			filter = FolderWalker.getFormatFilter(in.getCode());
+			if(filter == null)
 			{
-				error = t;
+				filter = FolderWalker.getExtensionFilter(
+					Collections.singleton(in.getCode().toLowerCase()));
 			}
 		}
 
-		/**
-		 * @return Output text as string
-		 * @throws IOException If there was any error during the process
-		 */
-		private String getOut() throws IOException
+		// Keep the window open until the walk is done
+		lockClose();
+		new FolderWalker(filter, new FolderWalker.Listener()
 		{
-			synchronized(this)
+			@Override
+			public void found(File[] files)
 			{
-				while(out == null)
+				if(mergeFiles == null)
 				{
-					try
-					{
-						wait();
-					}
-					catch(InterruptedException e)
-					{
-						setError(e);
-					}
+					convert(files, in, outs, filters, inAction, outFolder, null, true);
+					return;
 				}
-				if(error != null)
+				synchronized(mergeFiles)
 				{
-					throw new IOException("Error reading process stream", error);
+					mergeFiles.addAll(Arrays.asList(files));
 				}
-				return out;
 			}
-		}
-	}
 
-	/**
-	 * Called if there is a fatal error in the system.
-	 * @param t Error trace
-	 */
-	public void fatalError(final Throwable t)
-	{
-		// Make sure we're on the thread
-		if(!SwingUtilities.isEventDispatchThread())
-		{
-			SwingUtilities.invokeLater(new Runnable()
+			@Override
+			public void finished()
 			{
-				@Override
-				public void run()
+				if(mergeFiles != null && !mergeFiles.isEmpty())
 				{
-					fatalError(t);
+					// Folders are listed in parallel, so put files back in path order
+					Collections.sort(mergeFiles);
+					merge(mergeFiles, mergeGroups, in, outs, filters, inAction, outFolder);
 				}
-			});
-			return;
-		}
-
-		JOptionPane.showMessageDialog(this,
-			"An error occurred. The program will now exit. (Details in Console.)",
-			"GPSBabel easy convertor error", JOptionPane.ERROR_MESSAGE);
-		System.err.println("GPSBabel easy converter fatal error:");
-		t.printStackTrace();
-		System.exit(0);
+				unlockClose();
+			}
+		}).walk(folders);
 	}
 
-	private LinkedList<Conversion> queue = new LinkedList<Conversion>();
-	private boolean threadRunning;
-
-	private static class Conversion
+	/**
+	 * Converts files with the given settings, instead of those shown in the
+	 * window. May be called from any thread.
+	 * @param files Files to convert
+	 * @param in Input format
+	 * @param out Output format
+	 * @param filters Filters to run on the data
+	 * @param inAction Action on input files after successful conversion
+	 * @param outFolder Target folder, or null for same folder as input
+	 * @param statuses Status for each file, which is told about results as well
+	 *   as the table; or null if not needed
+	 */
+	@Override
+	public void convert(File[] files, FormatChooser.Format in,
+		FormatChooser.Format out, FilterChain filters,
+		AfterOptions.InFileAction inAction, File outFolder,
+		Converter.Status[] statuses)
 	{
-		private FormatChooser.Format in, out;
-		private InFileAction inAction;
-		private File file, outFolder;
-		private Conversion(Format in, Format out, File file, InFileAction inAction, File outFolder)
-		{
-			this.in = in;
-			this.out = out;
-			this.file = file;
-			this.inAction = inAction;
-			this.outFolder = outFolder;
-		}
+		// Not journalled, because hot folders find unconverted files anyway
+		convert(files, in, new FormatChooser.Format[] { out }, filters, inAction,
+			outFolder, statuses, false);
 	}
 
 	/**
-	 * Called to initiate convert.
+	 * Converts files with the given settings. May be called from any thread.
 	 * @param files Files to convert
+	 * @param in Input format
+	 * @param outs Output formats
+	 * @param filters Filters to run on the data
+	 * @param inAction Action on input files after successful conversion
+	 * @param outFolder Target folder, or null for same folder as input
+	 * @param statuses Status for each output of each file, in order by file
+	 *   then output, which is told about results as well as the table; or null
+	 *   if not needed
+	 * @param journalled True to record the conversions in the journal, so
+	 *   they are carried on with if the application stops first
 	 */
-	public void convert(final File[] files)
+	private void convert(File[] files, FormatChooser.Format in,
+		FormatChooser.Format[] outs, FilterChain filters,
+		AfterOptions.InFileAction inAction, File outFolder,
+		Converter.Status[] statuses, boolean journalled)
 	{
-		// Add files to results list
-		for(File file : files)
-		{
-			progress.getModel().addRow(file.getName(), file);
-		}
-
-		// Get settings
-		final FormatChooser.Format inFormat = chooser.getInFormat(),
-			outFormat = chooser.getOutFormat();
-		chooser.remember();
-		final AfterOptions.InFileAction inAction = options.getInAction();
-		final File outFolder = options.getOutFolder();
-		options.remember();
-
-		// Add to queue
-		boolean needsThread;
-		synchronized(queue)
+		// Add a results row for each output of each file
+		ProgressDisplay.ProgressTableModel.Row[] tableRows =
+			new ProgressDisplay.ProgressTableModel.Row[files.length * outs.length];
+		Converter.Status[] rows = new Converter.Status[tableRows.length];
+		for(int i=0; i<tableRows.length; i++)
 		{
-			needsThread = !threadRunning;
-			for(File file : files)
+			String name = files[i / outs.length].getName();
+			if(outs.length > 1)
 			{
-				queue.add(new Conversion(inFormat, outFormat, file, inAction, outFolder));
+				name += " (" + outs[i % outs.length].getCode() + ")";
 			}
-			if(needsThread)
+			tableRows[i] = progress.getModel().addRow(name);
+			rows[i] = tableRows[i];
+			if(statuses != null)
 			{
-				lockClose();
-				new ConversionThread();
+				rows[i] = new Converter.StatusPair(tableRows[i], statuses[i]);
 			}
 		}
-	}
-
-	private class ConversionThread extends Thread
-	{
-		private ConversionThread()
+		if(journalled && journal != null)
 		{
-			start();
-			threadRunning = true;
+			rows = journal.add(files, in, outs, filters, inAction, outFolder, rows);
 		}
-
-		@Override
-		public void run()
+		for(int i=0; i<tableRows.length; i++)
 		{
-			while(true)
-			{
-				Conversion conversion;
-				synchronized(queue)
-				{
-					if(queue.isEmpty())
-					{
-						threadRunning = false;
-						unlockClose();
-						return;
-					}
-					conversion = queue.removeFirst();
-				}
-
-				// Get result display row
-				ProgressTableModel.Row row = progress.getModel().getRow(conversion.file);
-				row.setProcessing();
-
-				try
-				{
-					// Work out new name for the file
-					File targetFolder = conversion.outFolder;
-					if(targetFolder == null)
-					{
-						targetFolder = conversion.file.getParentFile();
-					}
-					File targetFile = new File(targetFolder,
-						conversion.file.getName().replaceFirst("\\.[^.]+$", "") +
-						"." + conversion.out.getCode());
-
-					// Check they're not the same
-					if(targetFile.getCanonicalFile().equals(conversion.file.getCanonicalFile()))
-					{
-						row.setFailure("Target file would have same name as source");
-						continue;
-					}
-
-					// Check it doesn't exist already
-					if(targetFile.exists())
-					{
-						row.setFailure("Target file already exists");
-						continue;
-					}
-
-					// Check it doesn't exist already
-					if(!targetFile.getParentFile().canWrite())
-					{
-						row.setFailure("Target file not writable");
-						continue;
-					}
-
-					// Do convert
-					RunResult result = runGpsBabel(
-						"-r", "-t",
-						"-i", conversion.in.getCode(), "-f", conversion.file.getAbsolutePath(),
-						"-o", conversion.out.getCode(), "-F", targetFile.getAbsolutePath());
-
-					System.out.println(result.getStdout());
-					System.err.println(result.getStderr());
-					// TODO Check output for failure!
-
-					// After-conversion actions
-					conversion.inAction.afterConversion(conversion.file);
-
-					// OK, it succeeded
-					row.setSuccess("\u2192 " + targetFile.getName());
-				}
-				catch(Throwable t)
-				{
-					row.setFailure("Error: " + t.getMessage());
-					t.printStackTrace();
-				}
-			}
+			tableRows[i].setConversionStatus(rows[i]);
 		}
+
+		// Add to queue
+		converter.convert(in, outs, filters, inAction, outFolder, files, rows);
 	}
 }
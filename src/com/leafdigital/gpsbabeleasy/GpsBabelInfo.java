@@ -0,0 +1,240 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+import java.util.TreeSet;
+
+import com.leafdigital.gpsbabeleasy.FormatChooser.Format;
+
+/**
+ * Version and format list of the GPSBabel executable. Getting these means
+ * running GPSBabel twice, so they are kept in a cache file and only read again
+ * when the executable changes.
+ */
+public class GpsBabelInfo
+{
+	private final static String CACHE_FILE = "gpsbabel-info.txt";
+
+	private String path;
+	private long size = -1, modified = -1;
+	private String version;
+	private TreeSet<Format> formats = new TreeSet<Format>();
+
+	/**
+	 * Creates blank information, to be filled from the cache file.
+	 */
+	private GpsBabelInfo()
+	{
+	}
+
+	/**
+	 * Creates information with details of the executable file, to be filled
+	 * by running it.
+	 * @param executable GPSBabel executable
+	 */
+	private GpsBabelInfo(File executable)
+	{
+		path = executable.getAbsolutePath();
+		size = executable.length();
+		modified = executable.lastModified();
+	}
+
+	/**
+	 * @return GPSBabel name and version, e.g. "GPSBabel 1.4.3"
+	 */
+	public String getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * @return All formats, sorted by display name
+	 */
+	public TreeSet<Format> getFormats()
+	{
+		return formats;
+	}
+
+	/**
+	 * Gets information from the cache file, without running GPSBabel.
+	 * @param converter Converter (for the GPSBabel path)
+	 * @return Information, or null if it isn't cached or the executable has
+	 *   changed since
+	 */
+	public static GpsBabelInfo getCached(Converter converter)
+	{
+		GpsBabelInfo current = new GpsBabelInfo(new File(converter.getGpsBabelPath()));
+		File file = new File(ConversionCache.getCacheFolder(), CACHE_FILE);
+		if(!file.exists())
+		{
+			return null;
+		}
+		try
+		{
+			BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try
+			{
+				GpsBabelInfo cached = new GpsBabelInfo();
+				while(true)
+				{
+					String line = reader.readLine();
+					if(line == null)
+					{
+						break;
+					}
+					String[] parts = line.split("\t");
+					if(parts[0].equals("path") && parts.length == 2)
+					{
+						cached.path = parts[1];
+					}
+					else if(parts[0].equals("size") && parts.length == 2)
+					{
+						cached.size = Long.parseLong(parts[1]);
+					}
+					else if(parts[0].equals("modified") && parts.length == 2)
+					{
+						cached.modified = Long.parseLong(parts[1]);
+					}
+					else if(parts[0].equals("version") && parts.length == 2)
+					{
+						cached.version = parts[1];
+					}
+					else if(parts[0].equals("format") && parts.length == 3)
+					{
+						cached.formats.add(new Format(parts[1], parts[2]));
+					}
+				}
+
+				if(current.path.equals(cached.path) && current.size == cached.size &&
+					current.modified == cached.modified && cached.version != null &&
+					!cached.formats.isEmpty())
+				{
+					return cached;
+				}
+				return null;
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch(Exception e)
+		{
+			// Treat a damaged cache file as missing
+			return null;
+		}
+	}
+
+	/**
+	 * Runs GPSBabel to get information, and stores it in the cache file.
+	 * @param converter Converter used to run GPSBabel
+	 * @return Information
+	 * @throws Exception If GPSBabel fails
+	 */
+	public static GpsBabelInfo read(Converter converter) throws Exception
+	{
+		GpsBabelInfo info = new GpsBabelInfo(new File(converter.getGpsBabelPath()));
+		info.version = converter.readGpsBabelNameAndVersion();
+		info.formats = FormatChooser.readFormats(converter);
+		try
+		{
+			info.save();
+		}
+		catch(IOException e)
+		{
+			// Not a problem, it'll just be slower next time
+			System.err.println("Unable to save GPSBabel information: " + e.getMessage());
+		}
+		return info;
+	}
+
+	/**
+	 * Gets information from the cache file if possible, otherwise by running
+	 * GPSBabel.
+	 * @param converter Converter used to run GPSBabel
+	 * @return Information
+	 * @throws Exception If GPSBabel fails
+	 */
+	public static GpsBabelInfo get(Converter converter) throws Exception
+	{
+		GpsBabelInfo info = getCached(converter);
+		if(info == null)
+		{
+			info = read(converter);
+		}
+		return info;
+	}
+
+	/**
+	 * Saves to the cache file.
+	 * @throws IOException Any error
+	 */
+	private void save() throws IOException
+	{
+		File folder = ConversionCache.getCacheFolder();
+		if(!folder.isDirectory() && !folder.mkdirs())
+		{
+			throw new IOException("Unable to create cache folder " + folder);
+		}
+
+		// Write to temp file then rename, so a partial file is never read
+		File temp = File.createTempFile("info", ".tmp", folder);
+		try
+		{
+			Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+			try
+			{
+				writer.write("path\t" + clean(path) + "\n");
+				writer.write("size\t" + size + "\n");
+				writer.write("modified\t" + modified + "\n");
+				writer.write("version\t" + clean(version) + "\n");
+				for(Format format : formats)
+				{
+					writer.write("format\t" + clean(format.getCode()) + "\t" +
+						clean(format.toString()) + "\n");
+				}
+			}
+			finally
+			{
+				writer.close();
+			}
+			File file = new File(folder, CACHE_FILE);
+			file.delete();
+			if(!temp.renameTo(file))
+			{
+				throw new IOException("Unable to rename " + temp);
+			}
+		}
+		finally
+		{
+			temp.delete();
+		}
+	}
+
+	/**
+	 * @param text Text
+	 * @return Text with tabs and line breaks replaced by spaces
+	 */
+	private static String clean(String text)
+	{
+		return text.replaceAll("[\t\r\n]", " ");
+	}
+}
@@ -0,0 +1,275 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+
+import javax.xml.stream.*;
+
+/**
+ * Streaming reader for GPX files (versions 1.0 and 1.1). Only routes and
+ * tracks whose points have nothing but position, elevation, time and name
+ * can be read. Any other element (waypoints, metadata, extensions, point
+ * descriptions and so on) causes an IOException, so the file is converted
+ * by GPSBabel instead of losing that data.
+ */
+class GpxReader
+{
+	private InputStream in;
+
+	/**
+	 * @param in Input stream (not closed by this class)
+	 */
+	GpxReader(InputStream in)
+	{
+		this.in = in;
+	}
+
+	/**
+	 * Reads the file.
+	 * @param handler Handler that receives data
+	 * @throws IOException If the file isn't valid GPX, or any handler error
+	 */
+	void read(NativeConverter.Handler handler) throws IOException
+	{
+		XMLStreamReader reader;
+		try
+		{
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			reader = factory.createXMLStreamReader(in);
+		}
+		catch(XMLStreamException e)
+		{
+			throw new IOException("Invalid GPX: " + e.getMessage(), e);
+		}
+
+		try
+		{
+			read(reader, handler);
+		}
+		catch(XMLStreamException e)
+		{
+			throw new IOException("Invalid GPX: " + e.getMessage(), e);
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IOException("Invalid GPX number: " + e.getMessage(), e);
+		}
+		finally
+		{
+			try
+			{
+				reader.close();
+			}
+			catch(XMLStreamException e)
+			{
+				// Doesn't matter, the stream is closed by the caller anyway
+			}
+		}
+	}
+
+	private void read(XMLStreamReader reader, NativeConverter.Handler handler)
+		throws XMLStreamException, IOException
+	{
+		NativeConverter.Point point = new NativeConverter.Point();
+
+		// Depth of the current route or track, segment, and point elements, or
+		// -1 if not inside one
+		int depth = 0, containerDepth = -1, segmentDepth = -1, pointDepth = -1;
+		boolean track = false, started = false;
+		String containerName = null;
+
+		handler.start();
+		while(reader.hasNext())
+		{
+			int event = reader.next();
+			if(event == XMLStreamConstants.START_ELEMENT)
+			{
+				depth++;
+				String name = reader.getLocalName();
+				if(depth == 1)
+				{
+					if(!name.equals("gpx"))
+					{
+						throw new IOException("Not a GPX file");
+					}
+				}
+				else if(pointDepth != -1)
+				{
+					if(name.equals("ele"))
+					{
+						point.ele = Double.parseDouble(reader.getElementText().trim());
+						depth--;
+					}
+					else if(name.equals("time"))
+					{
+						point.time = reader.getElementText().trim();
+						depth--;
+					}
+					else if(name.equals("name"))
+					{
+						point.name = reader.getElementText();
+						depth--;
+					}
+					else
+					{
+						throw unsupported(name);
+					}
+				}
+				else if(segmentDepth != -1)
+				{
+					if(!name.equals("trkpt"))
+					{
+						throw unsupported(name);
+					}
+					startPoint(reader, point);
+					pointDepth = depth;
+				}
+				else if(containerDepth != -1)
+				{
+					if(name.equals("name"))
+					{
+						containerName = reader.getElementText();
+						depth--;
+					}
+					else if(track && name.equals("trkseg"))
+					{
+						if(!started)
+						{
+							handler.startTrack(containerName);
+							started = true;
+						}
+						handler.startSegment();
+						segmentDepth = depth;
+					}
+					else if(!track && name.equals("rtept"))
+					{
+						if(!started)
+						{
+							handler.startRoute(containerName);
+							started = true;
+						}
+						startPoint(reader, point);
+						pointDepth = depth;
+					}
+					else
+					{
+						throw unsupported(name);
+					}
+				}
+				else if(name.equals("rte") || name.equals("trk"))
+				{
+					containerDepth = depth;
+					track = name.equals("trk");
+					started = false;
+					containerName = null;
+				}
+				else
+				{
+					throw unsupported(name);
+				}
+			}
+			else if(event == XMLStreamConstants.END_ELEMENT)
+			{
+				if(depth == pointDepth)
+				{
+					handler.point(point);
+					pointDepth = -1;
+				}
+				else if(depth == segmentDepth)
+				{
+					handler.endSegment();
+					segmentDepth = -1;
+				}
+				else if(depth == containerDepth)
+				{
+					if(track)
+					{
+						if(!started)
+						{
+							handler.startTrack(containerName);
+						}
+						handler.endTrack();
+					}
+					else
+					{
+						if(!started)
+						{
+							handler.startRoute(containerName);
+						}
+						handler.endRoute();
+					}
+					containerDepth = -1;
+				}
+				depth--;
+			}
+		}
+		handler.end();
+	}
+
+	/**
+	 * Clears the point and reads its position.
+	 * @param reader Reader positioned on a point element
+	 * @param point Point
+	 * @throws IOException If the position is missing or out of range
+	 */
+	private static void startPoint(XMLStreamReader reader,
+		NativeConverter.Point point) throws IOException
+	{
+		point.clear();
+		point.lat = getCoordinate(reader, "lat", 90.0);
+		point.lon = getCoordinate(reader, "lon", 180.0);
+	}
+
+	/**
+	 * @param name Element name
+	 * @return Exception for an element this class doesn't convert, so that
+	 *   the file is left to GPSBabel rather than losing the data
+	 */
+	private static IOException unsupported(String name)
+	{
+		return new IOException("<" + name + "> not supported in-process");
+	}
+
+	/**
+	 * @param reader Reader positioned on a point element
+	 * @param attribute Attribute name
+	 * @param limit Largest value allowed either side of zero
+	 * @return Coordinate value
+	 * @throws IOException If missing or out of range
+	 */
+	private static double getCoordinate(XMLStreamReader reader, String attribute,
+		double limit) throws IOException
+	{
+		String value = reader.getAttributeValue(null, attribute);
+		if(value == null)
+		{
+			throw new IOException("Point without " + attribute);
+		}
+		double coordinate = Double.parseDouble(value.trim());
+		if(Double.isNaN(coordinate) || Math.abs(coordinate) > limit)
+		{
+			throw new IOException("Invalid " + attribute + ": " + value);
+		}
+		return coordinate;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+
+/**
+ * Writes GPX 1.0 or 1.1.
+ */
+class GpxWriter extends NativeWriter
+{
+	/** Element name for points in current route or track segment */
+	private String pointElement;
+
+	/** GPX version, 1.0 or 1.1 */
+	private String version;
+
+	/**
+	 * @param file Output file
+	 * @param version GPX version, 1.0 or 1.1; speed and course are only
+	 *   written in 1.0, as 1.1 has no elements for them
+	 * @throws IOException If the file can't be created
+	 */
+	GpxWriter(File file, String version) throws IOException
+	{
+		super(file);
+		this.version = version;
+	}
+
+	@Override
+	public void start() throws IOException
+	{
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		out.write("<gpx version=\"" + version +
+			"\" creator=\"GPSBabel easy converter\" " +
+			"xmlns=\"http://www.topografix.com/GPX/" + version.replace('.', '/') +
+			"\">\n");
+	}
+
+	@Override
+	public void startRoute(String name) throws IOException
+	{
+		out.write("<rte>\n");
+		writeName(name);
+		pointElement = "rtept";
+	}
+
+	@Override
+	public void endRoute() throws IOException
+	{
+		out.write("</rte>\n");
+	}
+
+	@Override
+	public void startTrack(String name) throws IOException
+	{
+		out.write("<trk>\n");
+		writeName(name);
+	}
+
+	@Override
+	public void startSegment() throws IOException
+	{
+		out.write("<trkseg>\n");
+		pointElement = "trkpt";
+	}
+
+	@Override
+	public void endSegment() throws IOException
+	{
+		out.write("</trkseg>\n");
+	}
+
+	@Override
+	public void endTrack() throws IOException
+	{
+		out.write("</trk>\n");
+	}
+
+	private void writeName(String name) throws IOException
+	{
+		if(name != null)
+		{
+			out.write("  ");
+			writeXmlElement("name", name);
+			out.write('\n');
+		}
+	}
+
+	@Override
+	public void point(NativeConverter.Point point) throws IOException
+	{
+		out.write("  <");
+		out.write(pointElement);
+		out.write(" lat=\"");
+		writeNumber(point.lat, 8, true);
+		out.write("\" lon=\"");
+		writeNumber(point.lon, 8, true);
+		out.write("\">");
+		writeNumberElement("ele", point.ele, 3);
+		writeXmlElement("time", point.time);
+		if(version.equals("1.0"))
+		{
+			writeNumberElement("course", point.course, 6);
+			writeNumberElement("speed", point.speed, 6);
+		}
+		writeNumberElement("geoidheight", point.geoidHeight, 3);
+		writeXmlElement("name", point.name);
+		writeXmlElement("fix", point.fix);
+		if(point.sat != -1)
+		{
+			out.write("<sat>");
+			out.write(Integer.toString(point.sat));
+			out.write("</sat>");
+		}
+		writeNumberElement("hdop", point.hdop, 6);
+		out.write("</");
+		out.write(pointElement);
+		out.write(">\n");
+	}
+
+	/**
+	 * Writes an XML element containing a number, if the number isn't NaN.
+	 * @param element Element name
+	 * @param value Number or NaN
+	 * @param places Maximum number of decimal places
+	 * @throws IOException Any error
+	 */
+	private void writeNumberElement(String element, double value, int places)
+		throws IOException
+	{
+		if(Double.isNaN(value))
+		{
+			return;
+		}
+		out.write('<');
+		out.write(element);
+		out.write('>');
+		writeNumber(value, places, true);
+		out.write("</");
+		out.write(element);
+		out.write('>');
+	}
+
+	@Override
+	public void end() throws IOException
+	{
+		out.write("</gpx>\n");
+		super.end();
+	}
+}
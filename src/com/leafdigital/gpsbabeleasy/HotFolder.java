@@ -0,0 +1,472 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+import java.util.*;
+import java.util.prefs.Preferences;
+
+import com.leafdigital.gpsbabeleasy.AfterOptions.InFileAction;
+import com.leafdigital.gpsbabeleasy.FormatChooser.Format;
+
+/**
+ * Watches folders and converts files that appear in them. Java 6 has no file
+ * system notifications, so each folder is listed every few seconds. A file is
+ * only converted once its size and modification time have stayed the same
+ * for a while, so files that are still being copied in are left alone.
+ * <p>
+ * Only a limited number of files are passed on for conversion at once; the
+ * rest are picked up on later polls, so a burst of thousands of files doesn't
+ * fill the queue (or the results table).
+ */
+public class HotFolder
+{
+	/**
+	 * Preferences keys for the hot folder in the main window. Folders are
+	 * separated by the platform path separator; the action is as for
+	 * {@link AfterOptions#getInFileAction(String, File)}. Nothing is watched
+	 * unless folders and both formats are set.
+	 */
+	private final static String PREF_FOLDERS = "hotfolder.folders",
+		PREF_IN = "hotfolder.in", PREF_OUT = "hotfolder.out",
+		PREF_ACTION = "hotfolder.action", PREF_MOVE_FOLDER = "hotfolder.moveFolder",
+		PREF_OUT_FOLDER = "hotfolder.outFolder",
+		PREF_EXTENSIONS = "hotfolder.extensions", PREF_FILTERS = "hotfolder.filters";
+
+	/**
+	 * Preferences keys for timing and limits, which also apply to the command
+	 * line.
+	 */
+	private final static String PREF_POLL_MILLIS = "hotfolder.pollMillis",
+		PREF_SETTLE_MILLIS = "hotfolder.settleMillis",
+		PREF_MAX_QUEUED = "hotfolder.maxQueued";
+	private final static int DEFAULT_POLL_MILLIS = 2000,
+		DEFAULT_SETTLE_MILLIS = 3000, DEFAULT_MAX_QUEUED = 64;
+
+	/** Maximum number of unconverted files tracked at once, per queue slot */
+	private final static int TRACKED_PER_QUEUED = 16;
+
+	/** Names used by common tools for files that are still being written */
+	private final static String[] PARTIAL_SUFFIXES =
+	{
+		".part", ".tmp", ".crdownload", ".download", ".partial"
+	};
+
+	/**
+	 * Receives files to convert.
+	 */
+	public interface Target
+	{
+		/**
+		 * Converts files. The target must pass each result to the matching
+		 * status as well as using it however it likes.
+		 * @param files Files to convert
+		 * @param in Input format
+		 * @param out Output format
+		 * @param filters Filters to run on the data
+		 * @param inAction Action on input files after successful conversion
+		 * @param outFolder Target folder, or null for same folder as input
+		 * @param statuses Status for each file
+		 */
+		public void convert(File[] files, Format in, Format out,
+			FilterChain filters, InFileAction inAction, File outFolder,
+			Converter.Status[] statuses);
+	}
+
+	/**
+	 * Details of a file that hasn't been converted yet.
+	 */
+	private static class Candidate
+	{
+		private long size, modified, stableSince;
+	}
+
+	private List<File> folders;
+	private Format in, out;
+	private FilterChain filters;
+	private InFileAction inAction;
+	private File outFolder;
+	private Set<String> extensions;
+	private Target target;
+
+	private int pollMillis, settleMillis, maxQueued;
+
+	private Object synch = new Object();
+	private Thread thread;
+	private boolean stopped;
+	private int queued;
+
+	/** Files waiting to settle */
+	private HashMap<File, Candidate> candidates = new HashMap<File, Candidate>();
+	/**
+	 * Files already sent for conversion, with their size and modification time
+	 * so that a changed file is converted again
+	 */
+	private HashMap<File, String> sent = new HashMap<File, String>();
+
+	/**
+	 * @param folders Folders to watch
+	 * @param in Input format
+	 * @param out Output format
+	 * @param filters Filters to run on the data
+	 * @param inAction Action on input files after successful conversion
+	 * @param outFolder Target folder, or null for same folder as input
+	 * @param extensions Extensions of files to convert (lower-case, without
+	 *   dot), or null for any
+	 * @param target Receives files to convert
+	 * @throws IllegalArgumentException If a folder doesn't exist, or output
+	 *   would go into a watched folder with the same extension as input
+	 */
+	public HotFolder(List<File> folders, Format in, Format out,
+		FilterChain filters, InFileAction inAction, File outFolder,
+		Collection<String> extensions, Target target) throws IllegalArgumentException
+	{
+		this.folders = new ArrayList<File>();
+		for(File folder : folders)
+		{
+			if(!folder.isDirectory())
+			{
+				throw new IllegalArgumentException("Not a folder: " + folder);
+			}
+			this.folders.add(folder.getAbsoluteFile());
+			if(in.getCode().equals(out.getCode()) &&
+				(outFolder == null || outFolder.getAbsoluteFile().equals(folder.getAbsoluteFile())))
+			{
+				throw new IllegalArgumentException(
+					"Output would be converted again: " + folder);
+			}
+		}
+		this.in = in;
+		this.out = out;
+		this.filters = filters;
+		this.inAction = inAction;
+		this.outFolder = outFolder;
+		this.extensions = extensions == null ? null : new HashSet<String>(extensions);
+		this.target = target;
+
+		Preferences prefs = Preferences.userNodeForPackage(HotFolder.class);
+		pollMillis = Math.max(100, prefs.getInt(PREF_POLL_MILLIS, DEFAULT_POLL_MILLIS));
+		settleMillis = Math.max(0, prefs.getInt(PREF_SETTLE_MILLIS, DEFAULT_SETTLE_MILLIS));
+		maxQueued = Math.max(1, prefs.getInt(PREF_MAX_QUEUED, DEFAULT_MAX_QUEUED));
+	}
+
+	/**
+	 * Creates a hot folder from the settings in preferences.
+	 * @param formats Available formats
+	 * @param target Receives files to convert
+	 * @return Hot folder (not yet started), or null if none is set up
+	 * @throws IllegalArgumentException If the settings are invalid
+	 */
+	public static HotFolder fromPreferences(Collection<Format> formats,
+		Target target) throws IllegalArgumentException
+	{
+		Preferences prefs = Preferences.userNodeForPackage(HotFolder.class);
+		String folderList = prefs.get(PREF_FOLDERS, ""),
+			inCode = prefs.get(PREF_IN, null), outCode = prefs.get(PREF_OUT, null);
+		if(folderList.length() == 0 || inCode == null || outCode == null)
+		{
+			return null;
+		}
+
+		List<File> folders = new ArrayList<File>();
+		for(String folder : folderList.split(File.pathSeparator))
+		{
+			if(folder.length() > 0)
+			{
+				folders.add(new File(folder));
+			}
+		}
+		Format in = FormatChooser.findFormat(formats, inCode),
+			out = FormatChooser.findFormat(formats, outCode);
+		if(in == null || out == null)
+		{
+			throw new IllegalArgumentException("Unknown hot folder format");
+		}
+		String moveFolder = prefs.get(PREF_MOVE_FOLDER, null),
+			outFolder = prefs.get(PREF_OUT_FOLDER, null),
+			extensions = prefs.get(PREF_EXTENSIONS, null),
+			filters = prefs.get(PREF_FILTERS, null);
+		InFileAction inAction = AfterOptions.getInFileAction(
+			prefs.get(PREF_ACTION, "nothing"),
+			moveFolder == null ? null : new File(moveFolder));
+		return new HotFolder(folders, in, out,
+			filters == null ? FilterChain.NONE : FilterChain.resolve(filters), inAction,
+			outFolder == null ? null : new File(outFolder),
+			extensions == null ? null : parseExtensions(extensions), target);
+	}
+
+	/**
+	 * @param list Comma-separated extensions, with or without dots
+	 * @return Extensions in lower case without dots
+	 */
+	static List<String> parseExtensions(String list)
+	{
+		List<String> extensions = new ArrayList<String>();
+		for(String extension : list.split(","))
+		{
+			extension = extension.trim().toLowerCase().replaceFirst("^\\.", "");
+			if(extension.length() > 0)
+			{
+				extensions.add(extension);
+			}
+		}
+		return extensions;
+	}
+
+	/**
+	 * Starts watching.
+	 * @throws IllegalStateException If already started
+	 */
+	public void start() throws IllegalStateException
+	{
+		synchronized(synch)
+		{
+			if(thread != null)
+			{
+				throw new IllegalStateException("Already started");
+			}
+			thread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					watch();
+				}
+			}, "Hot folder");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops watching. Files already sent for conversion carry on.
+	 */
+	public void stop()
+	{
+		synchronized(synch)
+		{
+			stopped = true;
+			synch.notifyAll();
+		}
+	}
+
+	private void watch()
+	{
+		while(true)
+		{
+			try
+			{
+				poll();
+			}
+			catch(Throwable t)
+			{
+				// Keep watching; the folder might come back
+				t.printStackTrace();
+			}
+
+			synchronized(synch)
+			{
+				if(!stopped)
+				{
+					try
+					{
+						synch.wait(pollMillis);
+					}
+					catch(InterruptedException e)
+					{
+						stopped = true;
+					}
+				}
+				if(stopped)
+				{
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lists the folders and sends any files that are ready.
+	 */
+	private void poll()
+	{
+		long now = System.currentTimeMillis();
+		int maxTracked = maxQueued * TRACKED_PER_QUEUED;
+		HashSet<File> seen = new HashSet<File>();
+		List<File> ready = new ArrayList<File>();
+		int available;
+		synchronized(synch)
+		{
+			available = maxQueued - queued;
+		}
+
+		// Only this thread uses the candidate and sent lists
+		for(File folder : folders)
+		{
+			File[] files = folder.listFiles();
+			if(files == null)
+			{
+				continue;
+			}
+			boolean outputHere = outFolder == null ||
+				outFolder.getAbsoluteFile().equals(folder);
+			for(File file : files)
+			{
+				if(!isWanted(file, outputHere))
+				{
+					continue;
+				}
+				seen.add(file);
+				long size = file.length(), modified = file.lastModified();
+				String signature = size + ":" + modified;
+				if(signature.equals(sent.get(file)))
+				{
+					continue;
+				}
+				if(isConverted(file, folder))
+				{
+					// Converted before, e.g. before a restart with no after-action
+					sent.put(file, signature);
+					continue;
+				}
+
+				Candidate candidate = candidates.get(file);
+				if(candidate == null)
+				{
+					if(candidates.size() >= maxTracked)
+					{
+						// Too many at once; notice it on a later poll
+						continue;
+					}
+					candidate = new Candidate();
+					candidates.put(file, candidate);
+				}
+				else if(candidate.size == size && candidate.modified == modified)
+				{
+					if(now - candidate.stableSince >= settleMillis &&
+						ready.size() < available)
+					{
+						ready.add(file);
+						candidates.remove(file);
+						sent.put(file, signature);
+					}
+					continue;
+				}
+				candidate.size = size;
+				candidate.modified = modified;
+				candidate.stableSince = now;
+			}
+		}
+
+		// Forget files that have gone (converted and moved, or deleted)
+		candidates.keySet().retainAll(seen);
+		sent.keySet().retainAll(seen);
+		synchronized(synch)
+		{
+			queued += ready.size();
+		}
+
+		if(ready.isEmpty())
+		{
+			return;
+		}
+		File[] files = ready.toArray(new File[ready.size()]);
+		Converter.Status[] statuses = new Converter.Status[files.length];
+		for(int i=0; i<statuses.length; i++)
+		{
+			statuses[i] = new QueuedStatus();
+		}
+		target.convert(files, in, out, filters, inAction, outFolder, statuses);
+	}
+
+	/**
+	 * @param file File in watched folder
+	 * @param folder Folder containing the file
+	 * @return True if the file's target already exists and isn't older than
+	 *   the file
+	 */
+	private boolean isConverted(File file, File folder)
+	{
+		String baseName = file.getName().replaceFirst("\\.[^.]+$", "");
+		File targetFile = new File(outFolder == null ? folder : outFolder,
+			baseName + "." + out.getCode());
+		return targetFile.exists() &&
+			targetFile.lastModified() >= file.lastModified();
+	}
+
+	/**
+	 * @param file File in watched folder
+	 * @param outputHere True if conversion output goes in the same folder
+	 * @return True if the file should be converted
+	 */
+	private boolean isWanted(File file, boolean outputHere)
+	{
+		String name = file.getName().toLowerCase();
+		if(name.startsWith(".") || !file.isFile())
+		{
+			return false;
+		}
+		for(String suffix : PARTIAL_SUFFIXES)
+		{
+			if(name.endsWith(suffix))
+			{
+				return false;
+			}
+		}
+		int dot = name.lastIndexOf('.');
+		String extension = dot == -1 ? "" : name.substring(dot + 1);
+		if(outputHere && extension.equals(out.getCode().toLowerCase()))
+		{
+			// Probably our own output
+			return false;
+		}
+		return extensions == null || extensions.contains(extension);
+	}
+
+	/**
+	 * Status that frees a queue slot when the conversion finishes.
+	 */
+	private class QueuedStatus implements Converter.Status
+	{
+		@Override
+		public void setProcessing()
+		{
+		}
+
+		@Override
+		public void setSuccess(String result)
+		{
+			finished();
+		}
+
+		@Override
+		public void setFailure(String result)
+		{
+			finished();
+		}
+
+		private void finished()
+		{
+			synchronized(synch)
+			{
+				queued--;
+			}
+		}
+	}
+}
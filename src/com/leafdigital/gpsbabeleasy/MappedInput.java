@@ -0,0 +1,334 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reads a file through memory mapping, so even multi-gigabyte files can be
+ * scanned without copying them onto the heap. Because a single mapping is
+ * limited to 2GB, the file is handled in chunks; chunk boundaries are placed
+ * just after a delimiter byte, so that records (such as lines) are never
+ * split between chunks and chunks can be scanned in parallel.
+ */
+public class MappedInput implements Closeable
+{
+	/** Default chunk size; large enough that mapping overhead doesn't matter */
+	final static long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+
+	/** Amount read at a time when looking for a chunk boundary */
+	private final static int BOUNDARY_WINDOW = 65536;
+
+	/** Shared threads for parallel scanning */
+	private static ExecutorService scanThreads;
+
+	private FileInputStream in;
+	private FileChannel channel;
+	private long size;
+
+	/**
+	 * Handles a chunk of the file.
+	 * @param <T> Result type
+	 */
+	public interface ChunkHandler<T>
+	{
+		/**
+		 * @param chunk Chunk data (read-only, from position 0 to limit)
+		 * @param position Position of chunk within file
+		 * @return Result for this chunk
+		 * @throws IOException Any error
+		 */
+		public T handle(ByteBuffer chunk, long position) throws IOException;
+	}
+
+	/**
+	 * Opens a file.
+	 * @param file File
+	 * @throws IOException If it can't be opened
+	 */
+	public MappedInput(File file) throws IOException
+	{
+		in = new FileInputStream(file);
+		channel = in.getChannel();
+		size = channel.size();
+	}
+
+	/**
+	 * @return File size in bytes
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		in.close();
+	}
+
+	/**
+	 * Maps part of the file.
+	 * @param position Start position
+	 * @param length Length (up to 2GB)
+	 * @return Read-only buffer
+	 * @throws IOException Any error
+	 */
+	public ByteBuffer map(long position, long length) throws IOException
+	{
+		if(length > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Cannot map more than 2GB at once");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+	}
+
+	/**
+	 * Reads the start of the file.
+	 * @param length Maximum number of bytes
+	 * @return Bytes (fewer than requested if the file is shorter)
+	 * @throws IOException Any error
+	 */
+	public byte[] head(int length) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(length, size));
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer, buffer.position()) == -1)
+			{
+				break;
+			}
+		}
+		byte[] result = new byte[buffer.position()];
+		System.arraycopy(buffer.array(), 0, result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * Works out chunk boundaries. Each chunk after the first begins just after
+	 * a delimiter, so chunks may be somewhat larger than requested; a chunk
+	 * with no delimiter in it continues until the next one.
+	 * @param chunkSize Approximate chunk size (no more than 1GB)
+	 * @param delimiter Byte that ends each record
+	 * @return Start position of each chunk, followed by the file size
+	 * @throws IOException Any error
+	 */
+	public long[] getBoundaries(long chunkSize, byte delimiter) throws IOException
+	{
+		if(chunkSize <= 0 || chunkSize > Integer.MAX_VALUE / 2)
+		{
+			throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+		}
+		List<Long> boundaries = new ArrayList<Long>();
+		boundaries.add(0L);
+		long last = 0;
+		for(long target = chunkSize; target < size; target = last + chunkSize)
+		{
+			long boundary = findDelimiter(target, delimiter);
+			if(boundary == -1)
+			{
+				break;
+			}
+			boundaries.add(boundary);
+			last = boundary;
+		}
+		boundaries.add(size);
+
+		long[] result = new long[boundaries.size()];
+		for(int i=0; i<result.length; i++)
+		{
+			result[i] = boundaries.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * @param from Position to start looking
+	 * @param delimiter Delimiter byte
+	 * @return Position just after the next delimiter, or -1 if there is none
+	 *   before the end of the file
+	 * @throws IOException Any error
+	 */
+	private long findDelimiter(long from, byte delimiter) throws IOException
+	{
+		// Read rather than map, as this is only a small part of the file
+		ByteBuffer window = ByteBuffer.allocate(BOUNDARY_WINDOW);
+		for(long pos = from; pos < size; pos += window.limit())
+		{
+			window.clear();
+			if(channel.read(window, pos) <= 0)
+			{
+				return -1;
+			}
+			window.flip();
+			for(int i=0; i<window.limit(); i++)
+			{
+				if(window.get(i) == delimiter)
+				{
+					long after = pos + i + 1;
+					return after < size ? after : -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Scans the file in chunks.
+	 * @param <T> Result type
+	 * @param chunkSize Approximate chunk size
+	 * @param delimiter Byte that ends each record; chunks only begin after one
+	 * @param handler Handler called for each chunk
+	 * @param parallel True to handle chunks at the same time on several
+	 *   threads (the handler must be thread-safe); false to handle them in
+	 *   order on the calling thread
+	 * @return Result from each chunk, in file order
+	 * @throws IOException Any error
+	 */
+	public <T> List<T> scan(long chunkSize, byte delimiter,
+		final ChunkHandler<T> handler, boolean parallel) throws IOException
+	{
+		long[] boundaries = getBoundaries(chunkSize, delimiter);
+		List<T> results = new ArrayList<T>();
+		if(!parallel || boundaries.length <= 2)
+		{
+			for(int i=0; i<boundaries.length - 1; i++)
+			{
+				long position = boundaries[i];
+				results.add(handler.handle(
+					map(position, boundaries[i + 1] - position), position));
+			}
+			return results;
+		}
+
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+		for(int i=0; i<boundaries.length - 1; i++)
+		{
+			final long position = boundaries[i], length = boundaries[i + 1] - position;
+			futures.add(getScanThreads().submit(new Callable<T>()
+			{
+				@Override
+				public T call() throws IOException
+				{
+					return handler.handle(map(position, length), position);
+				}
+			}));
+		}
+		try
+		{
+			for(Future<T> future : futures)
+			{
+				results.add(future.get());
+			}
+		}
+		catch(InterruptedException e)
+		{
+			throw new InterruptedIOException("Interrupted while scanning");
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof IOException)
+			{
+				throw (IOException)e.getCause();
+			}
+			throw new IOException("Error scanning file", e.getCause());
+		}
+		finally
+		{
+			for(Future<T> future : futures)
+			{
+				future.cancel(false);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @return Thread pool for parallel scans
+	 */
+	private static synchronized ExecutorService getScanThreads()
+	{
+		if(scanThreads == null)
+		{
+			scanThreads = Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+			{
+				private int index;
+
+				@Override
+				public synchronized Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "File scan " + (++index));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return scanThreads;
+	}
+
+	/**
+	 * Counts occurrences of a byte sequence in a chunk. The sequence must not
+	 * contain the chunk delimiter, so it can't be split between chunks.
+	 * @param chunk Chunk
+	 * @param pattern Bytes to find
+	 * @return Number of occurrences
+	 */
+	static long count(ByteBuffer chunk, byte[] pattern)
+	{
+		long count = 0;
+		int last = chunk.limit() - pattern.length;
+		byte first = pattern[0];
+		for(int i=0; i<=last; i++)
+		{
+			if(chunk.get(i) == first && matches(chunk, i, pattern))
+			{
+				count++;
+				i += pattern.length - 1;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param buffer Buffer
+	 * @param pos Position in buffer
+	 * @param pattern Bytes to check
+	 * @return True if the buffer contains the bytes at that position
+	 */
+	static boolean matches(ByteBuffer buffer, int pos, byte[] pattern)
+	{
+		if(pos + pattern.length > buffer.limit())
+		{
+			return false;
+		}
+		for(int i=0; i<pattern.length; i++)
+		{
+			if(buffer.get(pos + i) != pattern[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
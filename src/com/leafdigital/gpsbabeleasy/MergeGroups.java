@@ -0,0 +1,217 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Splits input files into groups that are each merged into a single output
+ * file. Files can be grouped all together or by the hour or day of their
+ * modification time, and each group is limited in number of files and total
+ * size so that the GPSBabel command line and the memory it needs to hold all
+ * the data stay within bounds.
+ */
+public class MergeGroups
+{
+	/** Ways of grouping files */
+	public final static String ALL = "all", HOUR = "hour", DAY = "day";
+
+	/**
+	 * Preferences keys for grouping, maximum files in a group, and maximum total
+	 * size of a group in megabytes.
+	 */
+	private final static String PREF_GROUP = "merge.group",
+		PREF_MAX_FILES = "merge.maxFiles", PREF_MAX_MB = "merge.maxMB";
+	private final static int DEFAULT_MAX_FILES = 500, DEFAULT_MAX_MB = 256;
+
+	private String grouping;
+	private int maxFiles;
+	private long maxBytes;
+
+	/**
+	 * A group of files to merge.
+	 */
+	public static class Group
+	{
+		private String name;
+		private List<File> files = new ArrayList<File>();
+		private long bytes;
+
+		private Group(String name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * @return Name for the output file, without extension
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * @return Files in the group, in the order they should be read
+		 */
+		public File[] getFiles()
+		{
+			return files.toArray(new File[files.size()]);
+		}
+	}
+
+	/**
+	 * @param grouping ALL, HOUR or DAY
+	 * @param maxFiles Maximum number of files in a group
+	 * @param maxBytes Maximum total size of files in a group (a single larger
+	 *   file still gets a group of its own)
+	 * @throws IllegalArgumentException If the grouping isn't recognised or a
+	 *   limit isn't positive
+	 */
+	public MergeGroups(String grouping, int maxFiles, long maxBytes)
+		throws IllegalArgumentException
+	{
+		if(!grouping.equals(ALL) && !grouping.equals(HOUR) && !grouping.equals(DAY))
+		{
+			throw new IllegalArgumentException("Unknown merge grouping: " + grouping);
+		}
+		if(maxFiles < 1 || maxBytes < 1)
+		{
+			throw new IllegalArgumentException("Merge limits must be positive");
+		}
+		this.grouping = grouping;
+		this.maxFiles = maxFiles;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Creates groups using preferences, with any of the values given here
+	 * used instead.
+	 * @param grouping ALL, HOUR or DAY, or null to use preferences
+	 * @param maxFiles Maximum number of files in a group, or 0 to use
+	 *   preferences
+	 * @param maxMB Maximum total size of a group in megabytes, or 0 to use
+	 *   preferences
+	 * @return New groups
+	 * @throws IllegalArgumentException If any value isn't valid
+	 */
+	public static MergeGroups fromPreferences(String grouping, int maxFiles,
+		int maxMB) throws IllegalArgumentException
+	{
+		Settings settings = Settings.get();
+		if(grouping == null)
+		{
+			grouping = settings.get(PREF_GROUP, ALL);
+		}
+		try
+		{
+			if(maxFiles == 0)
+			{
+				maxFiles = Integer.parseInt(settings.get(PREF_MAX_FILES, DEFAULT_MAX_FILES + ""));
+			}
+			if(maxMB == 0)
+			{
+				maxMB = Integer.parseInt(settings.get(PREF_MAX_MB, DEFAULT_MAX_MB + ""));
+			}
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Merge limits must be numbers");
+		}
+		return new MergeGroups(grouping, maxFiles, maxMB * 1024L * 1024L);
+	}
+
+	/**
+	 * Splits files into groups.
+	 * @param files Files, in the order to merge them (when grouping by time,
+	 *   files are sorted by modification time instead)
+	 * @return Groups, each with at least one file
+	 */
+	public List<Group> split(File[] files)
+	{
+		if(files.length == 0)
+		{
+			return new ArrayList<Group>();
+		}
+
+		// Sort by time, working out each file's period
+		List<File> sorted = new ArrayList<File>(Arrays.asList(files));
+		final Map<File, Long> modified = new HashMap<File, Long>();
+		for(File file : files)
+		{
+			modified.put(file, file.lastModified());
+		}
+		SimpleDateFormat periodFormat = null;
+		if(!grouping.equals(ALL))
+		{
+			periodFormat = new SimpleDateFormat(
+				grouping.equals(DAY) ? "yyyy-MM-dd" : "yyyy-MM-dd_HH", Locale.US);
+			Collections.sort(sorted, new Comparator<File>()
+			{
+				@Override
+				public int compare(File a, File b)
+				{
+					long diff = modified.get(a) - modified.get(b);
+					return diff < 0 ? -1 : diff > 0 ? 1 : a.compareTo(b);
+				}
+			});
+		}
+
+		// Fill groups for each period in turn, starting a new one at the limits
+		Map<String, List<Group>> periods = new LinkedHashMap<String, List<Group>>();
+		for(File file : sorted)
+		{
+			String period = periodFormat == null ? null :
+				periodFormat.format(new Date(modified.get(file)));
+			List<Group> groups = periods.get(period);
+			if(groups == null)
+			{
+				groups = new ArrayList<Group>();
+				periods.put(period, groups);
+			}
+			Group group = groups.isEmpty() ? null : groups.get(groups.size() - 1);
+			long length = file.length();
+			if(group == null || group.files.size() >= maxFiles ||
+				(!group.files.isEmpty() && group.bytes + length > maxBytes))
+			{
+				group = new Group(period != null ? period :
+					sorted.get(0).getName().replaceFirst("\\.[^.]+$", "") + "-merged");
+				groups.add(group);
+			}
+			group.files.add(file);
+			group.bytes += length;
+		}
+
+		// Number the parts of any period that needed more than one group
+		List<Group> result = new ArrayList<Group>();
+		for(List<Group> groups : periods.values())
+		{
+			if(groups.size() > 1)
+			{
+				for(int i=0; i<groups.size(); i++)
+				{
+					groups.get(i).name += "-" + (i + 1);
+				}
+			}
+			result.addAll(groups);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,341 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+
+import com.leafdigital.gpsbabeleasy.Converter.ProcessControl;
+
+/**
+ * Converts common formats without running GPSBabel, which saves starting a
+ * process for each file. Input is read as a stream of points that are written
+ * out immediately, so memory use doesn't depend on file size. Only files
+ * that can be converted without losing anything are handled; readers throw
+ * an IOException for data they don't support, and the caller then runs
+ * GPSBabel instead.
+ */
+public class NativeConverter
+{
+	/** How often (in points) to check whether the conversion has been stopped */
+	private final static int CHECK_INTERVAL = 4096;
+
+	/**
+	 * A single route or track point. Readers reuse the same object for every
+	 * point, so handlers must not keep it.
+	 */
+	public static class Point
+	{
+		/** Position in decimal degrees */
+		double lat, lon;
+		/** Elevation in metres, or NaN if not known */
+		double ele;
+		/** Time in ISO 8601 format, or null if not known */
+		String time;
+		/** Name, or null if none */
+		String name;
+		/** Speed in metres per second, or NaN if not known */
+		double speed;
+		/** Course in degrees true, or NaN if not known */
+		double course;
+		/** GPX fix type (2d, 3d, dgps or pps), or null if not known */
+		String fix;
+		/** Number of satellites used, or -1 if not known */
+		int sat;
+		/** Horizontal dilution of precision, or NaN if not known */
+		double hdop;
+		/** Height of geoid above WGS84 ellipsoid in metres, or NaN if not known */
+		double geoidHeight;
+
+		/**
+		 * Clears all data, ready for the next point.
+		 */
+		void clear()
+		{
+			lat = 0.0;
+			lon = 0.0;
+			ele = Double.NaN;
+			time = null;
+			name = null;
+			speed = Double.NaN;
+			course = Double.NaN;
+			fix = null;
+			sat = -1;
+			hdop = Double.NaN;
+			geoidHeight = Double.NaN;
+		}
+	}
+
+	/**
+	 * Receives data as it is read. Route and track calls are always nested
+	 * correctly; each route contains only points and each track contains only
+	 * segments.
+	 */
+	public interface Handler
+	{
+		/**
+		 * Called before anything else.
+		 * @throws IOException Any error
+		 */
+		public void start() throws IOException;
+
+		/**
+		 * @param name Route name, or null if none
+		 * @throws IOException Any error
+		 */
+		public void startRoute(String name) throws IOException;
+
+		/**
+		 * @throws IOException Any error
+		 */
+		public void endRoute() throws IOException;
+
+		/**
+		 * @param name Track name, or null if none
+		 * @throws IOException Any error
+		 */
+		public void startTrack(String name) throws IOException;
+
+		/**
+		 * @throws IOException Any error
+		 */
+		public void startSegment() throws IOException;
+
+		/**
+		 * @throws IOException Any error
+		 */
+		public void endSegment() throws IOException;
+
+		/**
+		 * @throws IOException Any error
+		 */
+		public void endTrack() throws IOException;
+
+		/**
+		 * @param point Point (only valid during this call)
+		 * @throws IOException Any error
+		 */
+		public void point(Point point) throws IOException;
+
+		/**
+		 * Called after everything else, if there were no errors.
+		 * @throws IOException Any error
+		 */
+		public void end() throws IOException;
+	}
+
+	/**
+	 * Thrown when the conversion is stopped by cancel or timeout.
+	 */
+	public static class StoppedException extends IOException
+	{
+		private final static long serialVersionUID = 1L;
+
+		private StoppedException(String reason)
+		{
+			super(reason);
+		}
+	}
+
+	/**
+	 * Handler that passes everything on, checking every so often whether the
+	 * conversion has been stopped.
+	 */
+	private static class StopChecker implements Handler
+	{
+		private Handler handler;
+		private ProcessControl control;
+		private int count;
+
+		private StopChecker(Handler handler, ProcessControl control)
+		{
+			this.handler = handler;
+			this.control = control;
+		}
+
+		private void check() throws StoppedException
+		{
+			String reason = control.getStopReason();
+			if(reason != null)
+			{
+				throw new StoppedException(reason);
+			}
+		}
+
+		@Override
+		public void start() throws IOException
+		{
+			check();
+			handler.start();
+		}
+
+		@Override
+		public void startRoute(String name) throws IOException
+		{
+			handler.startRoute(name);
+		}
+
+		@Override
+		public void endRoute() throws IOException
+		{
+			handler.endRoute();
+		}
+
+		@Override
+		public void startTrack(String name) throws IOException
+		{
+			handler.startTrack(name);
+		}
+
+		@Override
+		public void startSegment() throws IOException
+		{
+			handler.startSegment();
+		}
+
+		@Override
+		public void endSegment() throws IOException
+		{
+			handler.endSegment();
+		}
+
+		@Override
+		public void endTrack() throws IOException
+		{
+			handler.endTrack();
+		}
+
+		@Override
+		public void point(Point point) throws IOException
+		{
+			if(++count == CHECK_INTERVAL)
+			{
+				count = 0;
+				check();
+			}
+			handler.point(point);
+		}
+
+		@Override
+		public void end() throws IOException
+		{
+			check();
+			handler.end();
+		}
+	}
+
+	/**
+	 * @param inCode GPSBabel input format code
+	 * @param outCode GPSBabel output format code
+	 * @return True if this class can do the conversion
+	 */
+	public static boolean canConvert(String inCode, String outCode)
+	{
+		return canRead(inCode) && canWrite(outCode);
+	}
+
+	/**
+	 * @param inCode GPSBabel format code
+	 * @return True if this class can read the format
+	 */
+	private static boolean canRead(String inCode)
+	{
+		return inCode.equals("gpx") || inCode.equals("nmea");
+	}
+
+	/**
+	 * @param outCode GPSBabel format code
+	 * @return True if this class can write the format
+	 */
+	private static boolean canWrite(String outCode)
+	{
+		// Not CSV formats: GPSBabel makes up short names for csv, and picks the
+		// unicsv columns from the data in the whole file
+		return outCode.equals("gpx");
+	}
+
+	/**
+	 * Converts a file. If there is an error the output file is deleted.
+	 * @param input Input file
+	 * @param inCode GPSBabel input format code
+	 * @param output Output file
+	 * @param outCode GPSBabel output format code
+	 * @param control Control used to stop the conversion, or null if none
+	 * @throws StoppedException If the conversion was stopped
+	 * @throws IOException Any other error, including files that can't be
+	 *   read by this class
+	 * @throws IllegalArgumentException If the formats aren't supported
+	 */
+	public static void convert(File input, String inCode, File output,
+		String outCode, ProcessControl control)
+		throws IOException, IllegalArgumentException
+	{
+		if(!canConvert(inCode, outCode))
+		{
+			throw new IllegalArgumentException("Unsupported conversion: " +
+				inCode + " to " + outCode);
+		}
+
+		// Leave files that obviously aren't GPX to GPSBabel without trying
+		if(inCode.equals("gpx") && !"gpx".equals(FileSniffer.sniff(input)))
+		{
+			throw new IOException("Not a GPX file");
+		}
+
+		// Same versions as GPSBabel: NMEA is written as GPX 1.0, which has
+		// elements for speed and course
+		NativeWriter writer = new GpxWriter(output,
+			inCode.equals("nmea") ? "1.0" : "1.1");
+
+		boolean ok = false;
+		try
+		{
+			Handler handler = writer;
+			if(control != null)
+			{
+				handler = new StopChecker(writer, control);
+			}
+			if(inCode.equals("nmea"))
+			{
+				new NmeaReader(input).read(handler);
+			}
+			else
+			{
+				InputStream in = new BufferedInputStream(
+					new FileInputStream(input), 65536);
+				try
+				{
+					new GpxReader(in).read(handler);
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			ok = true;
+		}
+		finally
+		{
+			writer.close();
+			if(!ok)
+			{
+				output.delete();
+			}
+		}
+	}
+}
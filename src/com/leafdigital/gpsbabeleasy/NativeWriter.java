@@ -0,0 +1,156 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+
+/**
+ * Base class for writers used by {@link NativeConverter}.
+ */
+abstract class NativeWriter implements NativeConverter.Handler
+{
+	private final static long[] POWERS =
+	{
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L
+	};
+
+	/** Output text */
+	protected Writer out;
+
+	private char[] digits = new char[POWERS.length];
+
+	/**
+	 * @param file Output file
+	 * @throws IOException If the file can't be created
+	 */
+	protected NativeWriter(File file) throws IOException
+	{
+		out = new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(file), "UTF-8"), 65536);
+	}
+
+	/**
+	 * Closes the output file. Safe to call more than once.
+	 * @throws IOException Any error
+	 */
+	void close() throws IOException
+	{
+		if(out != null)
+		{
+			Writer closing = out;
+			out = null;
+			closing.close();
+		}
+	}
+
+	/**
+	 * Writes a number without using exponent notation.
+	 * @param value Number
+	 * @param places Maximum number of decimal places (up to 8)
+	 * @param trim True to leave out trailing zeros after the point
+	 * @throws IOException Any error
+	 */
+	protected void writeNumber(double value, int places, boolean trim)
+		throws IOException
+	{
+		long scale = POWERS[places];
+		long scaled = Math.round(Math.abs(value) * scale);
+		if(scaled != 0 && value < 0)
+		{
+			out.write('-');
+		}
+		out.write(Long.toString(scaled / scale));
+		long fraction = scaled % scale;
+		int length = places;
+		for(int i=places - 1; i>=0; i--)
+		{
+			digits[i] = (char)('0' + fraction % 10);
+			fraction /= 10;
+		}
+		if(trim)
+		{
+			while(length > 0 && digits[length - 1] == '0')
+			{
+				length--;
+			}
+		}
+		if(length > 0)
+		{
+			out.write('.');
+			out.write(digits, 0, length);
+		}
+	}
+
+	/**
+	 * Writes text escaped for XML.
+	 * @param text Text
+	 * @throws IOException Any error
+	 */
+	protected void writeXml(String text) throws IOException
+	{
+		for(int i=0; i<text.length(); i++)
+		{
+			char c = text.charAt(i);
+			switch(c)
+			{
+			case '<' :
+				out.write("&lt;");
+				break;
+			case '>' :
+				out.write("&gt;");
+				break;
+			case '&' :
+				out.write("&amp;");
+				break;
+			case '"' :
+				out.write("&quot;");
+				break;
+			default:
+				out.write(c);
+			}
+		}
+	}
+
+	/**
+	 * Writes an XML element containing text, if the text isn't null.
+	 * @param element Element name
+	 * @param text Text or null
+	 * @throws IOException Any error
+	 */
+	protected void writeXmlElement(String element, String text) throws IOException
+	{
+		if(text == null)
+		{
+			return;
+		}
+		out.write('<');
+		out.write(element);
+		out.write('>');
+		writeXml(text);
+		out.write("</");
+		out.write(element);
+		out.write('>');
+	}
+
+	@Override
+	public void end() throws IOException
+	{
+		out.flush();
+	}
+}
@@ -0,0 +1,532 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Reader for NMEA 0183 logs. Position comes from RMC and GGA sentences, which
+ * are combined when they have the same time, and all positions go in a single
+ * track. Speed and course come from RMC, and fix type, satellite count, HDOP
+ * and geoid height from GGA. Sentences are parsed directly from the
+ * memory-mapped file, so there's no heap copy of the data and no String for
+ * each line.
+ * <p>
+ * Logs this class can't convert completely (other sentence types, positions
+ * without a date, or no positions at all) cause an IOException, so that they
+ * are left to GPSBabel.
+ */
+class NmeaReader
+{
+	/** Lines longer than this can't be valid sentences and are skipped */
+	private final static int MAX_LINE = 1024;
+
+	/** Maximum number of fields used from a sentence */
+	private final static int MAX_FIELDS = 16;
+
+	/** RMC speed is in knots */
+	private final static double KNOTS_TO_MPS = 1852.0 / 3600.0;
+
+	private File file;
+	private NativeConverter.Handler handler;
+
+	/** Start of each field in the current line, plus end of the last field */
+	private int[] fields = new int[MAX_FIELDS + 1];
+	private int fieldCount;
+
+	/** Position of the point being built, or NaN if none yet */
+	private double lat = Double.NaN, lon, ele = Double.NaN;
+	/** Other data for the point being built, as in {@link NativeConverter.Point} */
+	private double speed = Double.NaN, course = Double.NaN, hdop = Double.NaN,
+		geoidHeight = Double.NaN;
+	private String fix;
+	private int sat = -1;
+	/** Time of day of the point being built, in milliseconds, or -1 */
+	private int time = -1;
+	/** Date from last RMC sentence, as ddmmyy, or -1 if none */
+	private int date = -1;
+
+	private boolean started;
+	private NativeConverter.Point point = new NativeConverter.Point();
+	private char[] timeChars = "2000-01-01T00:00:00.000Z".toCharArray();
+
+	/**
+	 * @param file File to read
+	 */
+	NmeaReader(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Reads the file.
+	 * @param handler Handler that receives data
+	 * @throws IOException Any error reading the file, or from the handler
+	 */
+	void read(NativeConverter.Handler handler) throws IOException
+	{
+		this.handler = handler;
+		handler.start();
+		MappedInput input = new MappedInput(file);
+		try
+		{
+			// Chunks end after a line break, so lines are never split
+			input.scan(MappedInput.DEFAULT_CHUNK_SIZE, (byte)'\n',
+				new MappedInput.ChunkHandler<Object>()
+			{
+				@Override
+				public Object handle(ByteBuffer chunk, long position)
+					throws IOException
+				{
+					lines(chunk);
+					return null;
+				}
+			}, false);
+		}
+		finally
+		{
+			input.close();
+		}
+
+		flush();
+		if(!started)
+		{
+			throw new IOException("No positions in NMEA log");
+		}
+		handler.endSegment();
+		handler.endTrack();
+		handler.end();
+	}
+
+	/**
+	 * Processes all the lines in a chunk.
+	 * @param chunk Chunk
+	 * @throws IOException Any handler error
+	 */
+	private void lines(ByteBuffer chunk) throws IOException
+	{
+		int lineStart = 0, end = chunk.limit();
+		for(int i=0; i<end; i++)
+		{
+			byte b = chunk.get(i);
+			if(b == '\n' || b == '\r')
+			{
+				line(chunk, lineStart, i);
+				lineStart = i + 1;
+			}
+		}
+		line(chunk, lineStart, end);
+	}
+
+	/**
+	 * Processes a single line.
+	 * @param bytes Buffer
+	 * @param start Start of line
+	 * @param end End of line (exclusive, not including line break)
+	 * @throws IOException Any handler error
+	 */
+	private void line(ByteBuffer bytes, int start, int end) throws IOException
+	{
+		// Must be at least $xxRMC, and not too long to be real
+		if(end - start < 6 || end - start > MAX_LINE || bytes.get(start) != '$')
+		{
+			return;
+		}
+
+		// Verify checksum if present
+		int checksumPos = -1;
+		for(int i=end - 1; i>start && i >= end - 4; i--)
+		{
+			if(bytes.get(i) == '*')
+			{
+				checksumPos = i;
+				break;
+			}
+		}
+		if(checksumPos != -1)
+		{
+			if(end - checksumPos != 3)
+			{
+				return;
+			}
+			int sum = 0;
+			for(int i=start + 1; i<checksumPos; i++)
+			{
+				sum ^= bytes.get(i);
+			}
+			int expected = (hex(bytes.get(checksumPos + 1)) << 4) |
+				hex(bytes.get(checksumPos + 2));
+			if(sum != expected)
+			{
+				return;
+			}
+			end = checksumPos;
+		}
+
+		// Split into fields
+		fieldCount = 0;
+		fields[0] = start + 1;
+		for(int i=start + 1; i<end && fieldCount < MAX_FIELDS - 1; i++)
+		{
+			if(bytes.get(i) == ',')
+			{
+				fields[++fieldCount] = i + 1;
+			}
+		}
+		fieldCount++;
+		fields[fieldCount] = end + 1;
+
+		// Sentence type, after two-letter talker ID (GP, GN, etc.)
+		int id = fields[0];
+		if(fields[1] - id != 6)
+		{
+			throw unsupported(bytes, id, fields[1] - 1);
+		}
+		byte a = bytes.get(id + 2), b = bytes.get(id + 3), c = bytes.get(id + 4);
+		if(a == 'R' && b == 'M' && c == 'C')
+		{
+			rmc(bytes);
+		}
+		else if(a == 'G' && b == 'G' && c == 'A')
+		{
+			gga(bytes);
+		}
+		else if(!(a == 'G' && b == 'S' && c == 'V'))
+		{
+			// GSV (satellites in view) isn't used by GPSBabel either, but other
+			// sentences may have data that would be lost
+			throw unsupported(bytes, id, id + 5);
+		}
+	}
+
+	/**
+	 * Handles RMC sentence:
+	 * $GPRMC,time,status,lat,N/S,lon,E/W,speed,course,date,...
+	 * @param bytes Buffer
+	 * @throws IOException Any handler error
+	 */
+	private void rmc(ByteBuffer bytes) throws IOException
+	{
+		if(fieldCount < 10 || fieldLength(2) != 1 || bytes.get(fields[2]) != 'A')
+		{
+			return;
+		}
+		int newTime = parseTime(bytes, 1);
+		int newDate = (int)parseNumber(bytes, 9);
+		if(newTime == -1 || fieldLength(9) != 6)
+		{
+			return;
+		}
+		double newLat = parseCoordinate(bytes, 3),
+			newLon = parseCoordinate(bytes, 5);
+		if(Double.isNaN(newLat) || Double.isNaN(newLon))
+		{
+			return;
+		}
+		startPoint(newTime);
+		date = newDate;
+		lat = newLat;
+		lon = newLon;
+		speed = parseNumber(bytes, 7) * KNOTS_TO_MPS;
+		course = parseNumber(bytes, 8);
+	}
+
+	/**
+	 * Handles GGA sentence:
+	 * $GPGGA,time,lat,N/S,lon,E/W,quality,satellites,hdop,altitude,M,...
+	 * @param bytes Buffer
+	 * @throws IOException Any handler error
+	 */
+	private void gga(ByteBuffer bytes) throws IOException
+	{
+		if(fieldCount < 10 || fieldLength(6) == 0 || bytes.get(fields[6]) == '0')
+		{
+			return;
+		}
+		int newTime = parseTime(bytes, 1);
+		double newLat = parseCoordinate(bytes, 2),
+			newLon = parseCoordinate(bytes, 4);
+		if(newTime == -1 || Double.isNaN(newLat) || Double.isNaN(newLon))
+		{
+			return;
+		}
+		startPoint(newTime);
+		lat = newLat;
+		lon = newLon;
+		ele = parseNumber(bytes, 9);
+		geoidHeight = fieldCount > 11 ? parseNumber(bytes, 11) : Double.NaN;
+		double sats = parseNumber(bytes, 7);
+		sat = Double.isNaN(sats) ? -1 : (int)sats;
+		hdop = parseNumber(bytes, 8);
+		// Fix quality as GPSBabel interprets it; other values are left unknown
+		switch(bytes.get(fields[6]))
+		{
+		case '1' :
+			fix = sat > 3 ? "3d" : "2d";
+			break;
+		case '2' :
+			fix = "dgps";
+			break;
+		case '3' :
+			fix = "pps";
+			break;
+		default:
+			fix = null;
+		}
+	}
+
+	/**
+	 * Called when a sentence has a position. If it's for a different time from
+	 * the current point, the current point is finished.
+	 * @param newTime Time of sentence
+	 * @throws IOException Any handler error
+	 */
+	private void startPoint(int newTime) throws IOException
+	{
+		if(newTime != time)
+		{
+			flush();
+			time = newTime;
+		}
+	}
+
+	/**
+	 * Sends the current point, if there is one, to the handler.
+	 * @throws IOException Any handler error
+	 */
+	private void flush() throws IOException
+	{
+		if(Double.isNaN(lat))
+		{
+			return;
+		}
+		if(date == -1)
+		{
+			// GPSBabel has ways to date these, so leave it to that
+			throw new IOException("NMEA position without date");
+		}
+		if(!started)
+		{
+			handler.startTrack(null);
+			handler.startSegment();
+			started = true;
+		}
+		point.clear();
+		point.lat = lat;
+		point.lon = lon;
+		point.ele = ele;
+		point.speed = speed;
+		point.course = course;
+		point.fix = fix;
+		point.sat = sat;
+		point.hdop = hdop;
+		point.geoidHeight = geoidHeight;
+
+		// ddmmyy, with two-digit years taken as 1980-2079
+		int year = date % 100;
+		year += year < 80 ? 2000 : 1900;
+		setDigits(0, year, 4);
+		setDigits(5, (date / 100) % 100, 2);
+		setDigits(8, date / 10000, 2);
+		int seconds = time / 1000, millis = time % 1000;
+		setDigits(11, seconds / 3600, 2);
+		setDigits(14, (seconds / 60) % 60, 2);
+		setDigits(17, seconds % 60, 2);
+		if(millis == 0)
+		{
+			timeChars[19] = 'Z';
+			point.time = new String(timeChars, 0, 20);
+		}
+		else
+		{
+			// Keep fractions for loggers that record several times a second
+			timeChars[19] = '.';
+			setDigits(20, millis, 3);
+			timeChars[23] = 'Z';
+			point.time = new String(timeChars);
+		}
+		handler.point(point);
+		lat = Double.NaN;
+		ele = Double.NaN;
+		speed = Double.NaN;
+		course = Double.NaN;
+		hdop = Double.NaN;
+		geoidHeight = Double.NaN;
+		fix = null;
+		sat = -1;
+	}
+
+	/**
+	 * @param bytes Buffer
+	 * @param start Start of sentence type, including talker ID
+	 * @param end End of sentence type
+	 * @return Exception for a sentence this class doesn't convert
+	 */
+	private static IOException unsupported(ByteBuffer bytes, int start, int end)
+	{
+		StringBuilder type = new StringBuilder();
+		for(int i=start; i<end && type.length() < 10; i++)
+		{
+			type.append((char)(bytes.get(i) & 0xff));
+		}
+		return new IOException("NMEA " + type +
+			" sentences not supported in-process");
+	}
+
+	private void setDigits(int pos, int value, int digits)
+	{
+		for(int i=pos + digits - 1; i>=pos; i--)
+		{
+			timeChars[i] = (char)('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+	private int fieldLength(int field)
+	{
+		return fields[field + 1] - 1 - fields[field];
+	}
+
+	/**
+	 * Parses a time field (hhmmss or hhmmss.sss).
+	 * @param bytes Buffer
+	 * @param field Field index
+	 * @return Time of day in milliseconds, or -1 if invalid
+	 */
+	private int parseTime(ByteBuffer bytes, int field)
+	{
+		if(fieldLength(field) < 6)
+		{
+			return -1;
+		}
+		double value = parseNumber(bytes, field);
+		if(Double.isNaN(value))
+		{
+			return -1;
+		}
+		int whole = (int)value;
+		int hours = whole / 10000, minutes = (whole / 100) % 100,
+			seconds = whole % 100;
+		if(hours > 23 || minutes > 59 || seconds > 60)
+		{
+			return -1;
+		}
+		return (hours * 3600 + minutes * 60 + seconds) * 1000 +
+			(int)Math.round((value - whole) * 1000);
+	}
+
+	/**
+	 * Parses a coordinate field (dddmm.mmmm) followed by a hemisphere field.
+	 * @param bytes Buffer
+	 * @param field Field index of coordinate
+	 * @return Decimal degrees, or NaN if invalid
+	 */
+	private double parseCoordinate(ByteBuffer bytes, int field)
+	{
+		double value = parseNumber(bytes, field);
+		if(Double.isNaN(value) || fieldLength(field + 1) != 1)
+		{
+			return Double.NaN;
+		}
+		int degrees = (int)(value / 100);
+		double result = degrees + (value - degrees * 100) / 60.0;
+		byte hemisphere = bytes.get(fields[field + 1]);
+		if(hemisphere == 'S' || hemisphere == 'W')
+		{
+			return -result;
+		}
+		else if(hemisphere == 'N' || hemisphere == 'E')
+		{
+			return result;
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * Parses a decimal number field.
+	 * @param bytes Buffer
+	 * @param field Field index
+	 * @return Number, or NaN if empty or invalid
+	 */
+	private double parseNumber(ByteBuffer bytes, int field)
+	{
+		int pos = fields[field], end = fields[field + 1] - 1;
+		if(pos >= end)
+		{
+			return Double.NaN;
+		}
+		boolean negative = false;
+		if(bytes.get(pos) == '-')
+		{
+			negative = true;
+			pos++;
+		}
+		long digits = 0, scale = 1;
+		boolean point = false, any = false;
+		for(; pos<end; pos++)
+		{
+			byte b = bytes.get(pos);
+			if(b >= '0' && b <= '9')
+			{
+				// Ignore digits beyond what a long can hold
+				if(digits < 100000000000000000L)
+				{
+					digits = digits * 10 + (b - '0');
+					if(point)
+					{
+						scale *= 10;
+					}
+				}
+				any = true;
+			}
+			else if(b == '.' && !point)
+			{
+				point = true;
+			}
+			else
+			{
+				return Double.NaN;
+			}
+		}
+		if(!any)
+		{
+			return Double.NaN;
+		}
+		double value = (double)digits / scale;
+		return negative ? -value : value;
+	}
+
+	private static int hex(byte b)
+	{
+		if(b >= '0' && b <= '9')
+		{
+			return b - '0';
+		}
+		if(b >= 'A' && b <= 'F')
+		{
+			return b - 'A' + 10;
+		}
+		if(b >= 'a' && b <= 'f')
+		{
+			return b - 'a' + 10;
+		}
+		return -1000;
+	}
+}
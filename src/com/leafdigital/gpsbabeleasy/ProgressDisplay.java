@@ -19,6 +19,7 @@ Copyright 2012 Samuel Marshall.
 package com.leafdigital.gpsbabeleasy;
 
 import java.awt.*;
+import java.awt.event.*;
 import java.util.*;
 
 import javax.swing.*;
@@ -30,6 +31,8 @@ public class ProgressDisplay extends JPanel
 	private final static String INPUT_TEXT = "Input file";
 	private final static String RESULT_TEXT = "Result";
 	private final static String PROCESSING_TEXT = "Processing...";
+	private final static String CANCEL_TEXT = "Cancel conversion";
+	private final static String CANCEL_ALL_TEXT = "Cancel all conversions";
 	private final static String[] COLUMNS =
 	{
 		"\u00a0",
@@ -50,7 +53,9 @@ public class ProgressDisplay extends JPanel
 	private final static Color TICK_RGB = new Color(20, 128, 20);
 	private final static Color CROSS_RGB = new Color(128, 20, 20);
 
+	private GpsBabelEasy easy;
 	private ProgressTableModel model;
+	private JTable table;
 
 	/**
 	 * @param easy Owner
@@ -58,6 +63,7 @@ public class ProgressDisplay extends JPanel
 	public ProgressDisplay(GpsBabelEasy easy)
 	{
 		super(new BorderLayout(GpsBabelEasy.UI_SPACING, GpsBabelEasy.UI_SPACING));
+		this.easy = easy;
 
 		DefaultTableColumnModel columnModel = new DefaultTableColumnModel();
 		for(int i=0; i<COLUMNS.length; i++)
@@ -84,10 +90,85 @@ public class ProgressDisplay extends JPanel
 		}
 
 		model = new ProgressTableModel();
-		JTable table = new JTable(model, columnModel);
+		table = new JTable(model, columnModel);
 		JScrollPane scrollPane = new JScrollPane(table,
 			JScrollPane.VERTICAL_SCROLLBAR_ALWAYS, JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
 		add(scrollPane, BorderLayout.CENTER);
+
+		// Context menu for cancelling conversions
+		final JPopupMenu menu = new JPopupMenu();
+		JMenuItem cancel = new JMenuItem(CANCEL_TEXT);
+		cancel.addActionListener(new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				cancelSelected();
+			}
+		});
+		menu.add(cancel);
+		JMenuItem cancelAll = new JMenuItem(CANCEL_ALL_TEXT);
+		cancelAll.addActionListener(new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				ProgressDisplay.this.easy.getConverter().cancelAll();
+			}
+		});
+		menu.add(cancelAll);
+		table.addMouseListener(new MouseAdapter()
+		{
+			@Override
+			public void mousePressed(MouseEvent e)
+			{
+				showMenu(e);
+			}
+
+			@Override
+			public void mouseReleased(MouseEvent e)
+			{
+				showMenu(e);
+			}
+
+			private void showMenu(MouseEvent e)
+			{
+				if(!e.isPopupTrigger())
+				{
+					return;
+				}
+				// Right-click on an unselected row selects it
+				int row = table.rowAtPoint(e.getPoint());
+				if(row != -1 && !table.isRowSelected(row))
+				{
+					table.setRowSelectionInterval(row, row);
+				}
+				menu.show(table, e.getX(), e.getY());
+			}
+		});
+
+		// Delete key also cancels
+		table.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_BACK_SPACE, 0), "cancel");
+		table.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_DELETE, 0), "cancel");
+		table.getActionMap().put("cancel", new AbstractAction()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				cancelSelected();
+			}
+		});
+	}
+
+	/**
+	 * Cancels conversion of all selected rows that haven't finished yet.
+	 */
+	private void cancelSelected()
+	{
+		for(int index : table.getSelectedRows())
+		{
+			easy.getConverter().cancel(model.getRowAt(index).getConversionStatus());
+		}
 	}
 
 	private static class TickRenderer extends DefaultTableCellRenderer
@@ -120,48 +201,79 @@ public class ProgressDisplay extends JPanel
 	}
 
 	/**
-	 * Data model used for progress table.
+	 * Data model used for progress table. Rows are added and updated from any
+	 * thread, but the table reads them without locking: rows are stored in
+	 * fixed-size blocks that never move, and the row count the table sees only
+	 * changes on the event thread, after each row is complete.
+	 * <p>
+	 * Table events are not sent for each change. Instead, changed rows are
+	 * marked and the table is told about them all at once, no more often than
+	 * every {@link #FLUSH_MILLIS} milliseconds.
 	 */
 	public static class ProgressTableModel extends AbstractTableModel
 	{
+		/** Number of rows in each block (must be a power of two) */
+		private final static int BLOCK_SIZE = 1024;
+		private final static int BLOCK_SHIFT = 10;
+
+		/** Minimum time between table events */
+		private final static int FLUSH_MILLIS = 50;
+
+		/** Above this many separate changed ranges, one event covers them all */
+		private final static int MAX_RANGES = 32;
+
+		private final static byte STATE_WAITING = 0, STATE_PROCESSING = 1,
+			STATE_SUCCESS = 2, STATE_FAILURE = 3;
+
 		/**
-		 * A row within the table.
+		 * A row within the table. The row object itself is the handle used to
+		 * update it, so the same file can appear in more than one row.
 		 */
-		public class Row
+		public class Row implements Converter.Status
 		{
-			private int index;
-			private String[] cols = new String[COLUMNS.length];
+			private final int index;
+			private final String input;
+			private volatile byte state = STATE_WAITING;
+			private volatile String result = "";
+			private volatile Converter.Status conversionStatus = this;
 
 			private Row(String input, int index)
 			{
-				for(int i=0; i<cols.length; i++)
-				{
-					switch(i)
-					{
-					case 1 :
-						cols[1] = input;
-						break;
-					default:
-						cols[i] = "";
-					}
-				}
+				this.input = input;
 				this.index = index;
 			}
 
+			/**
+			 * Sets the status that was passed to the converter for this row, if it
+			 * wasn't the row itself (for example when the row is one half of a
+			 * {@link Converter.StatusPair}). This is used to cancel it.
+			 * @param status Status given to converter
+			 */
+			public void setConversionStatus(Converter.Status status)
+			{
+				conversionStatus = status;
+			}
+
+			/**
+			 * @return Status that was passed to the converter for this row
+			 */
+			public Converter.Status getConversionStatus()
+			{
+				return conversionStatus;
+			}
+
 			/**
 			 * Sets the 'Processing...' text.
 			 */
-			public void setProcessing()
+			@Override
+			public synchronized void setProcessing()
 			{
-				synchronized(ProgressTableModel.this)
+				if(state != STATE_WAITING)
 				{
-					if(cols[2].length() != 0)
-					{
-						throw new IllegalStateException("Cannot set more than once");
-					}
-					cols[2] = PROCESSING_TEXT;
-					update();
+					throw new IllegalStateException("Cannot set more than once");
 				}
+				state = STATE_PROCESSING;
+				update();
 			}
 
 			/**
@@ -169,18 +281,10 @@ public class ProgressDisplay extends JPanel
 			 * @param result Result text
 			 * @throws IllegalStateException If result was already set
 			 */
+			@Override
 			public void setSuccess(String result) throws IllegalStateException
 			{
-				synchronized(ProgressTableModel.this)
-				{
-					if(cols[0].length() != 0)
-					{
-						throw new IllegalStateException("Cannot set more than once");
-					}
-					cols[0] = TICK;
-					cols[2] = result;
-					update();
-				}
+				setResult(STATE_SUCCESS, result);
 			}
 
 			/**
@@ -188,35 +292,76 @@ public class ProgressDisplay extends JPanel
 			 * @param result Result text
 			 * @throws IllegalStateException If result was already set
 			 */
+			@Override
 			public void setFailure(String result) throws IllegalStateException
 			{
-				synchronized(ProgressTableModel.this)
+				setResult(STATE_FAILURE, result);
+			}
+
+			/**
+			 * @param newState Success or failure state
+			 * @param result Result text
+			 * @throws IllegalStateException If result was already set
+			 */
+			private synchronized void setResult(byte newState, String result)
+				throws IllegalStateException
+			{
+				if(state == STATE_SUCCESS || state == STATE_FAILURE)
 				{
-					if(cols[0].length() != 0)
-					{
-						throw new IllegalStateException("Cannot set more than once");
-					}
-					cols[0] = CROSS;
-					cols[2] = result;
-					update();
+					throw new IllegalStateException("Cannot set more than once");
 				}
+				// Result goes first, so a reader that sees the new state sees it too
+				this.result = result;
+				state = newState;
+				update();
 			}
 
-			private void update()
+			/**
+			 * @param columnIndex Column index
+			 * @return Value of column
+			 */
+			private Object getValue(int columnIndex)
 			{
-				SwingUtilities.invokeLater(new Runnable()
+				byte current = state;
+				switch(columnIndex)
 				{
-					@Override
-					public void run()
-					{
-						fireTableRowsUpdated(index, index);
-					}
-				});
+				case 0 :
+					return current == STATE_SUCCESS ? TICK
+						: current == STATE_FAILURE ? CROSS : "";
+				case 1 :
+					return input;
+				default:
+					return current == STATE_PROCESSING ? PROCESSING_TEXT
+						: current == STATE_WAITING ? "" : result;
+				}
+			}
+
+			private void update()
+			{
+				changed(index);
 			}
 		}
 
-		private LinkedList<Row> rows = new LinkedList<Row>();
-		private HashMap<Object, Row> index = new HashMap<Object, Row>();
+		/** Blocks of rows; replaced (never changed) when it needs to grow */
+		private volatile Row[][] blocks = new Row[16][];
+
+		/** Number of rows added; only changed while synchronized */
+		private int added;
+
+		/** Number of rows the table has been told about; event thread only */
+		private int visible;
+
+		/** Rows updated since the last flush; synchronize on this to use */
+		private BitSet dirty = new BitSet();
+
+		/** True if a flush has been requested and hasn't started yet */
+		private boolean flushPending;
+
+		/** Time of last flush; event thread only */
+		private long lastFlush;
+
+		/** Timer used to delay a flush; event thread only */
+		private javax.swing.Timer flushTimer;
 
 		@Override
 		public int getColumnCount()
@@ -225,52 +370,172 @@ public class ProgressDisplay extends JPanel
 		}
 
 		@Override
-		public synchronized int getRowCount()
+		public int getRowCount()
 		{
-			return rows.size();
+			return visible;
 		}
 
 		@Override
-		public synchronized Object getValueAt(int rowIndex, int columnIndex)
+		public Object getValueAt(int rowIndex, int columnIndex)
 		{
-			return rows.get(rowIndex).cols[columnIndex];
+			return getRowAt(rowIndex).getValue(columnIndex);
 		}
 
 		/**
 		 * Adds a row.
 		 * @param input Input file for row
-		 * @param key Key for row so it can be retrieved later
+		 * @return New row, which is used to update it
 		 */
-		synchronized void addRow(String input, Object key)
+		synchronized Row addRow(String input)
 		{
-			final Row row = new Row(input, rows.size());
-			rows.addLast(row);
-			index.put(key, row);
+			Row row = new Row(input, added);
+			int block = added >> BLOCK_SHIFT;
+			Row[][] current = blocks;
+			if(block == current.length)
+			{
+				current = Arrays.copyOf(current, current.length * 2);
+			}
+			if(current[block] == null)
+			{
+				current[block] = new Row[BLOCK_SIZE];
+			}
+			current[block][added & (BLOCK_SIZE - 1)] = row;
+			blocks = current;
+			added++;
+
+			changed(-1);
+			return row;
+		}
 
+		/**
+		 * Marks a row as changed and makes sure a flush will happen.
+		 * @param rowIndex Index of updated row, or -1 if a row was added
+		 */
+		private void changed(int rowIndex)
+		{
+			synchronized(dirty)
+			{
+				if(rowIndex != -1)
+				{
+					dirty.set(rowIndex);
+				}
+				if(flushPending)
+				{
+					return;
+				}
+				flushPending = true;
+			}
 			SwingUtilities.invokeLater(new Runnable()
 			{
 				@Override
 				public void run()
 				{
-					fireTableRowsInserted(row.index, row.index);
+					scheduleFlush();
 				}
 			});
 		}
 
 		/**
-		 * Obtains row for a given key.
-		 * @param key Row key
-		 * @return Row
-		 * @throws IllegalArgumentException If doesn't exist
+		 * Flushes now if it's been long enough since the last one, otherwise
+		 * starts the timer to flush later. Called on the event thread.
 		 */
-		public synchronized Row getRow(Object key) throws IllegalArgumentException
+		private void scheduleFlush()
 		{
-			Row result = index.get(key);
-			if(result == null)
+			long delay = lastFlush + FLUSH_MILLIS - System.currentTimeMillis();
+			if(delay <= 0 || delay > FLUSH_MILLIS)
 			{
-				throw new IllegalArgumentException("Row not found");
+				flush();
+				return;
 			}
-			return result;
+			if(flushTimer == null)
+			{
+				flushTimer = new javax.swing.Timer(FLUSH_MILLIS, new ActionListener()
+				{
+					@Override
+					public void actionPerformed(ActionEvent e)
+					{
+						flush();
+					}
+				});
+				flushTimer.setRepeats(false);
+			}
+			flushTimer.setInitialDelay((int)delay);
+			flushTimer.restart();
+		}
+
+		/**
+		 * Sends table events for all rows added or changed since the last flush.
+		 * Called on the event thread.
+		 */
+		private void flush()
+		{
+			lastFlush = System.currentTimeMillis();
+			BitSet changed;
+			synchronized(dirty)
+			{
+				changed = (BitSet)dirty.clone();
+				dirty.clear();
+				flushPending = false;
+			}
+			// Read after clearing the flag, so a row added now gets another flush
+			int count;
+			synchronized(this)
+			{
+				count = added;
+			}
+
+			// Rows not yet visible are covered by the insert event
+			int oldVisible = visible;
+			if(changed.length() > oldVisible)
+			{
+				changed.clear(oldVisible, changed.length());
+			}
+			if(!changed.isEmpty())
+			{
+				fireUpdated(changed);
+			}
+			if(count > oldVisible)
+			{
+				visible = count;
+				fireTableRowsInserted(oldVisible, count - 1);
+			}
+		}
+
+		/**
+		 * Sends update events for changed rows, merging neighbouring rows into
+		 * ranges.
+		 * @param changed Changed rows (not empty)
+		 */
+		private void fireUpdated(BitSet changed)
+		{
+			int ranges = 0;
+			for(int start = changed.nextSetBit(0); start != -1;
+				start = changed.nextSetBit(changed.nextClearBit(start)))
+			{
+				ranges++;
+			}
+			if(ranges > MAX_RANGES)
+			{
+				fireTableRowsUpdated(changed.nextSetBit(0), changed.length() - 1);
+				return;
+			}
+			for(int start = changed.nextSetBit(0); start != -1;)
+			{
+				int end = changed.nextClearBit(start);
+				fireTableRowsUpdated(start, end - 1);
+				start = changed.nextSetBit(end);
+			}
+		}
+
+		/**
+		 * Gets a row. The row must already be visible, so this should be called
+		 * from the event thread.
+		 * @param rowIndex Index of row
+		 * @return Row
+		 */
+		Row getRowAt(int rowIndex)
+		{
+			return blocks[rowIndex >> BLOCK_SHIFT][rowIndex & (BLOCK_SIZE - 1)];
 		}
 
 		@Override
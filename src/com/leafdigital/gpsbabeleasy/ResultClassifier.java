@@ -0,0 +1,116 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.io.File;
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether a GPSBabel conversion worked, from its exit code, the
+ * messages it printed, and its output file. GPSBabel doesn't always exit with
+ * an error code when it fails to read a file, so all three are checked.
+ */
+public class ResultClassifier
+{
+	/**
+	 * Patterns for lines in GPSBabel's standard error that indicate a failure.
+	 * Most GPSBabel errors are of the form "module: message".
+	 */
+	private final static Pattern[] ERROR_PATTERNS =
+	{
+		Pattern.compile("(?i).*\\bcannot\\b.*"),
+		Pattern.compile("(?i).*\\bcould not\\b.*"),
+		Pattern.compile("(?i).*\\bunable to\\b.*"),
+		Pattern.compile("(?i).*\\b(fatal|error)\\b.*"),
+		Pattern.compile("(?i).*\\b(invalid|unsupported|unknown|unrecognized)\\b.*"),
+		Pattern.compile("(?i).*\\bnot a valid\\b.*"),
+		Pattern.compile("(?i).*\\bno such file\\b.*")
+	};
+
+	/** Lines that match an error pattern but are only warnings */
+	private final static Pattern WARNING_PATTERN = Pattern.compile("(?i).*\\bwarning\\b.*");
+
+	/**
+	 * Checks the result of converting a single file.
+	 * @param exitCode GPSBabel exit code
+	 * @param stderr Text from GPSBabel standard error (may be null)
+	 * @param output Output file
+	 * @return Failure text to display, or null if the conversion worked
+	 */
+	public static String classify(int exitCode, String stderr, File output)
+	{
+		String error = findError(stderr);
+		if(exitCode != 0)
+		{
+			return error != null ? error : "GPSBabel failed (exit code " + exitCode + ")";
+		}
+		if(error != null)
+		{
+			return error;
+		}
+		return checkOutput(output);
+	}
+
+	/**
+	 * Checks an output file.
+	 * @param output Output file
+	 * @return Failure text to display, or null if there is some output
+	 */
+	public static String checkOutput(File output)
+	{
+		if(!output.exists())
+		{
+			return "No output file was written";
+		}
+		if(output.length() == 0)
+		{
+			return "Output file is empty (no data converted)";
+		}
+		return null;
+	}
+
+	/**
+	 * Looks for an error message in GPSBabel's standard error.
+	 * @param stderr Text from GPSBabel standard error (may be null)
+	 * @return First line that looks like an error, or null if none
+	 */
+	public static String findError(String stderr)
+	{
+		if(stderr == null)
+		{
+			return null;
+		}
+		for(String line : stderr.split("[\r\n]+"))
+		{
+			line = line.trim();
+			if(line.length() == 0 || WARNING_PATTERN.matcher(line).matches())
+			{
+				continue;
+			}
+			for(Pattern pattern : ERROR_PATTERNS)
+			{
+				if(pattern.matcher(line).matches())
+				{
+					return line;
+				}
+			}
+		}
+		return null;
+	}
+}
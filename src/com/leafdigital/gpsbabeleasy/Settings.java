@@ -0,0 +1,196 @@
+/*
+This file is part of leafdigital GPSBabel easy converter.
+
+GPSBabel easy converter is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+GPSBabel easy converter is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GPSBabel easy converter. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.gpsbabeleasy;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.prefs.*;
+
+/**
+ * Write-behind store for settings that change as the application is used,
+ * such as recently used formats and folders. Values are kept in memory and
+ * written to preferences straight away, but the preferences are only saved
+ * to disk a short time after the last change (and when the application
+ * exits), so lots of changes in a row don't each cause a write.
+ */
+public class Settings
+{
+	/** Time after a change before preferences are saved */
+	private final static long SAVE_DELAY_MILLIS = 2000;
+
+	/** Time after a failed save before it is tried again */
+	private final static long RETRY_DELAY_MILLIS = 30000;
+
+	private final static Settings instance = new Settings(
+		Preferences.userNodeForPackage(Settings.class));
+
+	/**
+	 * Single thread used to save preferences.
+	 */
+	private final static ScheduledExecutorService saver =
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "Settings saver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	/** Marks keys that have been removed */
+	private final static String REMOVED = new String("");
+
+	private Preferences prefs;
+
+	/** Values already read or written; REMOVED if there is no value */
+	private HashMap<String, String> values = new HashMap<String, String>();
+
+	/** Pending save, or null if everything has been saved */
+	private ScheduledFuture<?> save;
+
+	/**
+	 * @param prefs Preferences node
+	 */
+	private Settings(Preferences prefs)
+	{
+		this.prefs = prefs;
+		Runtime.getRuntime().addShutdownHook(new Thread("Settings shutdown")
+		{
+			@Override
+			public void run()
+			{
+				save();
+			}
+		});
+	}
+
+	/**
+	 * @return Settings for this application
+	 */
+	public static Settings get()
+	{
+		return instance;
+	}
+
+	/**
+	 * @param key Key
+	 * @param def Default value
+	 * @return Value, or default if not set
+	 */
+	public synchronized String get(String key, String def)
+	{
+		String value = values.get(key);
+		if(value == null)
+		{
+			value = prefs.get(key, null);
+			values.put(key, value == null ? REMOVED : value);
+		}
+		return value == null || value == REMOVED ? def : value;
+	}
+
+	/**
+	 * Sets a value. It is saved to disk later.
+	 * @param key Key
+	 * @param value Value, or null to remove it
+	 */
+	public synchronized void put(String key, String value)
+	{
+		String old = values.get(key);
+		if(value == null)
+		{
+			if(old == REMOVED)
+			{
+				return;
+			}
+			values.put(key, REMOVED);
+			prefs.remove(key);
+		}
+		else
+		{
+			if(value.equals(old))
+			{
+				return;
+			}
+			values.put(key, value);
+			prefs.put(key, value);
+		}
+		scheduleSave(SAVE_DELAY_MILLIS);
+	}
+
+	/**
+	 * Schedules a save, unless one is already pending. Must be called while
+	 * synchronized on this object.
+	 * @param delay Delay in milliseconds
+	 */
+	private void scheduleSave(long delay)
+	{
+		if(save == null)
+		{
+			save = saver.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					save();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Removes a value. It is saved to disk later.
+	 * @param key Key
+	 */
+	public void remove(String key)
+	{
+		put(key, null);
+	}
+
+	/**
+	 * Saves changes to disk now, if there are any.
+	 */
+	public void save()
+	{
+		synchronized(this)
+		{
+			if(save == null)
+			{
+				return;
+			}
+			save.cancel(false);
+			save = null;
+		}
+		// Changes made during the flush start a new save, so none are lost
+		try
+		{
+			prefs.flush();
+		}
+		catch(BackingStoreException e)
+		{
+			// Values are still in memory, so try again later
+			System.err.println("Unable to save settings: " + e.getMessage());
+			synchronized(this)
+			{
+				scheduleSave(RETRY_DELAY_MILLIS);
+			}
+		}
+	}
+}